@@ -0,0 +1,57 @@
+package de.moritz.fastimageviewer.image;
+
+import javafx.scene.image.Image;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link ImageProvider} that delivers images without blocking the caller. The returned futures are completed on
+ * background threads, so callers have to switch to JavaFX thread themselves before showing an image.
+ */
+public interface AsyncImageProvider extends ImageProvider {
+	/**
+	 *
+	 * @return next image, completed with null if there is none
+	 */
+	CompletableFuture<Image> nextAsync();
+
+	/**
+	 *
+	 * @return previous image, completed with null if there is none
+	 */
+	CompletableFuture<Image> prevAsync();
+
+	/**
+	 * Moves by given number of images. Images in between are skipped, they are not loaded for this.
+	 *
+	 * @param steps
+	 *            images to move, negative to move backwards
+	 * @return image reached, completed with null if there is none
+	 */
+	CompletableFuture<Image> skipAsync(int steps);
+
+	/**
+	 *
+	 * @param index
+	 *            between 0 and maxindex
+	 * @return image with given index
+	 */
+	CompletableFuture<Image> getImageAsync(int index);
+
+	/**
+	 *
+	 * @return image given by user or first for current folder and sorting
+	 */
+	CompletableFuture<Image> getImageAsync();
+
+	/**
+	 *
+	 * @return last image delivered in full resolution
+	 */
+	CompletableFuture<Image> getFullImageAsync();
+
+	/**
+	 * Tells that image in full resolution is not shown anymore, so provider does not keep it.
+	 */
+	void releaseFullImage();
+}
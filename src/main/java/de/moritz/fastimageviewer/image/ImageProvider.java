@@ -47,4 +47,21 @@ public interface ImageProvider extends Iterator<Image> {
 	 * @param sorted true:sorted, false: random image out put
 	 */
 	void setSort(boolean sorted);
+
+	/**
+	 * Sets size of area images are shown in. Implementations may deliver images scaled down to this size to save
+	 * memory and decoding time.
+	 *
+	 * @param width
+	 *            width in pixels
+	 * @param height
+	 *            height in pixels
+	 */
+	void setViewportSize(double width, double height);
+
+	/**
+	 *
+	 * @return last image delivered in full resolution (e.g. to zoom to 100%)
+	 */
+	Image getFullImage();
 }
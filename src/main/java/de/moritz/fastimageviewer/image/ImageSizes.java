@@ -0,0 +1,62 @@
+package de.moritz.fastimageviewer.image;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Helpers to decide at which size an image is decoded.
+ */
+public final class ImageSizes {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ImageSizes.class);
+
+    private ImageSizes() {
+    }
+
+    /**
+     * Reads image dimensions from header without decoding image.
+     *
+     * @param input file or input stream
+     * @return width and height or null if not readable
+     */
+    public static int[] readSize(Object input) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(input)) {
+            if (in != null) {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+                if (readers.hasNext()) {
+                    ImageReader reader = readers.next();
+                    try {
+                        reader.setInput(in);
+                        return new int[] {reader.getWidth(0), reader.getHeight(0)};
+                    } finally {
+                        reader.dispose();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOG.debug("Can't read size of " + input + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * @param encoded image file content
+     * @param width   viewport width, 0 if not known
+     * @param height  viewport height, 0 if not known
+     * @return true if image is larger than viewport, so it should be decoded scaled down
+     */
+    public static boolean isLargerThan(byte[] encoded, double width, double height) {
+        if (width <= 0 || height <= 0) {
+            return false;
+        }
+        int[] size = readSize(new ByteArrayInputStream(encoded));
+        return size != null && (size[0] > width || size[1] > height);
+    }
+}
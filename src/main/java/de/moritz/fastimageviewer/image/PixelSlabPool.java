@@ -0,0 +1,173 @@
+package de.moritz.fastimageviewer.image;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import de.moritz.fastimageviewer.main.DiModule.BufferBudget;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelBuffer;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Keeps pixels of buffered images in direct memory slabs that are reused once an image is released, so paging
+ * through a folder does not fill the heap with large pixel arrays. Slabs are pooled in buckets of similar size (at
+ * most 1/8 larger than needed). Slabs are reference counted: a slab is reused only once its buffer released it and
+ * everyone else using the image (e.g. viewer or pixel cache) did so too. Images never released are collected together
+ * with their slab.
+ */
+@Singleton
+public class PixelSlabPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PixelSlabPool.class);
+
+    /**
+     * bytes of free slabs kept at most
+     */
+    private final long maxIdle;
+    private final Map<Long, Deque<ByteBuffer>> idle = new HashMap<>();
+    private long idleBytes = 0;
+    /**
+     * slabs of images handed out, released ones are kept with no references until their image is collected
+     */
+    private final Map<Image, Slab> slabs = new WeakHashMap<>();
+    private long allocated = 0;
+    private long reused = 0;
+
+    @Inject
+    private PixelSlabPool(@BufferBudget Long bufferBudget) {
+        this.maxIdle = bufferBudget / 4;
+    }
+
+    /**
+     * Copies pixels of a decoded image into a slab. The decoded image is not needed anymore afterwards. The image
+     * has one reference, held by the caller.
+     * <p>
+     * JavaFX decodes into a heap array of its own and can't decode into a given buffer, so this costs a copy on the
+     * decode thread: 23ms next to 65ms decoding a 2560x1440 jpeg. It is paid so buffered images, held for seconds
+     * and most of the memory used, live in reused slabs, while the decoded array is garbage right away and is
+     * collected young. Without the copy, pixel arrays of buffered images would be promoted to old generation while
+     * paging and be collected there.
+     *
+     * @param decoded decoded image, may be null
+     * @return image backed by a slab, or decoded image if it can't be copied
+     */
+    public Image wrap(Image decoded) {
+        if (decoded == null || decoded.isError() || decoded.getProgress() < 1) {
+            return decoded;
+        }
+        int width = (int) decoded.getWidth();
+        int height = (int) decoded.getHeight();
+        long bytes = (long) width * height * 4;
+        if (bytes == 0 || bucketOf(bytes) > Integer.MAX_VALUE) {
+            return decoded;
+        }
+        ByteBuffer slab = take(bytes);
+        if (slab == null) {
+            return decoded;
+        }
+        slab.clear();
+        PixelBuffer<IntBuffer> pixels = new PixelBuffer<>(width, height, slab.order(ByteOrder.nativeOrder()).asIntBuffer(),
+                                                          PixelFormat.getIntArgbPreInstance());
+        decoded.getPixelReader().getPixels(0, 0, width, height, PixelFormat.getIntArgbPreInstance(),
+                                           pixels.getBuffer(), width);
+        WritableImage image = new WritableImage(pixels);
+        synchronized (this) {
+            slabs.put(image, new Slab(slab));
+        }
+        return image;
+    }
+
+    /**
+     * Adds a reference to image, its slab is not reused until it is released again.
+     *
+     * @param image any image, may be null
+     * @return false if image was released already and its pixels might be overwritten, true otherwise
+     */
+    public synchronized boolean acquire(Image image) {
+        Slab slab = image == null ? null : slabs.get(image);
+        if (slab == null) {
+            return true;
+        }
+        if (slab.references == 0) {
+            return false;
+        }
+        slab.references++;
+        return true;
+    }
+
+    /**
+     * Removes a reference from image. Slab goes back to pool once no references are left, the image must not be
+     * used anymore then.
+     *
+     * @param image image returned by {@link #wrap(Image)}, other images are ignored
+     */
+    public synchronized void release(Image image) {
+        Slab slab = image == null ? null : slabs.get(image);
+        if (slab != null && slab.references > 0 && --slab.references == 0) {
+            putIdle(slab.buffer);
+        }
+    }
+
+    private synchronized ByteBuffer take(long bytes) {
+        long bucket = bucketOf(bytes);
+        Deque<ByteBuffer> free = idle.get(bucket);
+        if (free != null && !free.isEmpty()) {
+            idleBytes -= bucket;
+            reused++;
+            return free.pollFirst();
+        }
+        try {
+            allocated++;
+            return ByteBuffer.allocateDirect((int) bucket);
+        } catch (OutOfMemoryError e) {
+            // direct memory is exhausted, free slabs of other sizes are collected
+            LOG.debug("No direct memory for " + bucket + " bytes, dropping " + idleBytes + " idle bytes.");
+            idle.clear();
+            idleBytes = 0;
+            return null;
+        } finally {
+            if (allocated % 100 == 0) {
+                LOG.debug("Pixel slabs allocated: " + allocated + ", reused: " + reused);
+            }
+        }
+    }
+
+    private void putIdle(ByteBuffer slab) {
+        long bucket = slab.capacity();
+        if (idleBytes + bucket > maxIdle) {
+            // left to garbage collector
+            return;
+        }
+        idle.computeIfAbsent(bucket, b -> new ArrayDeque<>()).addFirst(slab);
+        idleBytes += bucket;
+    }
+
+    /**
+     * @return bytes rounded up to next of 8 steps per power of two
+     */
+    static long bucketOf(long bytes) {
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(bytes) - 3);
+        long step = 1L << shift;
+        return (bytes + step - 1) / step * step;
+    }
+
+    private static class Slab {
+        private final ByteBuffer buffer;
+        private int references = 1;
+
+        private Slab(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
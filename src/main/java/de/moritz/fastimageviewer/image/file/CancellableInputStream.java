@@ -0,0 +1,45 @@
+package de.moritz.fastimageviewer.image.file;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Input stream that fails on next read once it is cancelled. Decoders read while decoding, so a decode in progress
+ * stops shortly after cancellation.
+ */
+class CancellableInputStream extends FilterInputStream {
+
+    private final BooleanSupplier cancelled;
+
+    CancellableInputStream(InputStream in, BooleanSupplier cancelled) {
+        super(in);
+        this.cancelled = cancelled;
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkCancelled();
+        return super.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkCancelled();
+        return super.read(b, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        checkCancelled();
+        return super.skip(n);
+    }
+
+    private void checkCancelled() throws IOException {
+        if (cancelled.getAsBoolean()) {
+            throw new InterruptedIOException("Load cancelled");
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package de.moritz.fastimageviewer.image.file;
+
+import com.google.inject.Inject;
+import com.google.inject.assistedinject.Assisted;
+import de.moritz.fastimageviewer.main.DiModule.EncodedBudget;
+import de.moritz.fastimageviewer.main.DiModule.IoPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Outer tier of buffering: holds files as read from disk, far more images around the current one than
+ * {@link ImageBuffer} can hold decoded. Decoding from memory is much faster than reading a file first, so the decoded
+ * tier is refilled quickly as the user moves. Files whose images are taken from a cache are not read.
+ */
+public class EncodedBuffer {
+
+    private static final int FORWARD = 50;
+    private static final int BACKWARD = 20;
+    /**
+     * size assumed for files as long as nothing was read
+     */
+    private static final long DEFAULT_FILE_BYTES = 5L * 1024 * 1024;
+    /**
+     * bytes read at once, cancellation is checked between reads
+     */
+    private static final int READ_CHUNK = 4 * 1024 * 1024;
+    /**
+     * interval cancellation is checked in while waiting for a read of buffer
+     */
+    private static final long WAIT_CHECK_MS = 50;
+    private static final Logger LOG = LoggerFactory.getLogger(EncodedBuffer.class);
+
+    private final FolderIndex folderIndex;
+    /**
+     * true for files loads take from a cache, they are not read ahead
+     */
+    private final Predicate<Path> cached;
+    private final ExecutorService ioPool;
+    private final long budget;
+    private final Map<Path, byte[]> encoded = new ConcurrentHashMap<>();
+    /**
+     * reads queued or running, a read not in here anymore is skipped
+     */
+    private final Set<Path> pending = ConcurrentHashMap.newKeySet();
+    /**
+     * reads running, completed with content or exceptionally if read failed or was cancelled
+     */
+    private final Map<Path, CompletableFuture<byte[]>> reading = new ConcurrentHashMap<>();
+    /**
+     * files of window found in cache, not checked again while they stay in window
+     */
+    private final Set<Path> skipped = new HashSet<>();
+    private long bufferedBytes = 0;
+    private volatile double averageFileBytes = DEFAULT_FILE_BYTES;
+    private volatile Path currentPath;
+    /**
+     * true once another folder is browsed, nothing is read anymore
+     */
+    private boolean stopped = false;
+
+    @Inject
+    private EncodedBuffer(@Assisted FolderIndex folderIndex, @Assisted Predicate<Path> cached,
+                          @IoPool ExecutorService ioPool, @EncodedBudget Long budget) {
+        checkArgument(budget >= 0);
+        this.folderIndex = checkNotNull(folderIndex);
+        this.cached = checkNotNull(cached);
+        this.ioPool = checkNotNull(ioPool);
+        this.budget = budget;
+        folderIndex.addListener(this::update);
+        folderIndex.addModifiedListener(this::invalidate);
+    }
+
+    /**
+     * Content of file for a load: taken from buffer, from a read of buffer running for it or read directly. A read of
+     * buffer still queued is not waited for, it might be queued behind many others.
+     *
+     * @param path      image file
+     * @param cancelled stops reading or waiting if true
+     * @return content of file
+     * @throws IOException if file can't be read or read was cancelled
+     */
+    public byte[] read(Path path, BooleanSupplier cancelled) throws IOException {
+        byte[] content = encoded.get(path);
+        if (content != null) {
+            return content;
+        }
+        CompletableFuture<byte[]> running = reading.get(path);
+        if (running != null) {
+            content = await(running, cancelled);
+            if (content != null) {
+                return content;
+            }
+        }
+        return readFile(path, cancelled);
+    }
+
+    /**
+     * @return content read by buffer or null if its read failed
+     */
+    private static byte[] await(CompletableFuture<byte[]> running, BooleanSupplier cancelled) throws IOException {
+        while (!cancelled.getAsBoolean()) {
+            try {
+                return running.get(WAIT_CHECK_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // still reading
+            } catch (ExecutionException e) {
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Read interrupted");
+            }
+        }
+        throw new InterruptedIOException("Read cancelled");
+    }
+
+    /**
+     * Centers buffer on given image.
+     *
+     * @param path current image
+     */
+    public void startUpdate(Path path) {
+        currentPath = path;
+        update();
+    }
+
+    /**
+     * Checks again which files are cached, e.g. because viewport size changed.
+     */
+    public synchronized void recheckCached() {
+        skipped.clear();
+        update();
+    }
+
+    private synchronized void update() {
+        List<Path> paths = folderIndex.getSnapshot();
+        int index = currentPath == null ? -1 : Collections.binarySearch(paths, currentPath);
+        if (index < 0 || budget == 0 || stopped) {
+            return;
+        }
+        // nearest first, forward before backward - as far as budget allows, files in cache need no budget
+        List<Integer> window = new ArrayList<>();
+        for (int i = Math.max(0, index - BACKWARD); i <= Math.min(paths.size() - 1, index + FORWARD); i++) {
+            if (i != index) {
+                window.add(i);
+            }
+        }
+        window.sort(Comparator.comparingInt(i -> 2 * Math.abs(i - index) + (i < index ? 1 : 0)));
+        Map<Path, Integer> wanted = new HashMap<>();
+        Set<Path> cachedInWindow = new HashSet<>();
+        long bytes = 0;
+        for (int i : window) {
+            Path path = paths.get(i);
+            byte[] content = encoded.get(path);
+            if (content == null && !pending.contains(path) && isCached(path)) {
+                cachedInWindow.add(path);
+                continue;
+            }
+            bytes += content != null ? content.length : (long) averageFileBytes;
+            if (bytes > budget) {
+                break;
+            }
+            wanted.put(path, i);
+        }
+        skipped.retainAll(cachedInWindow);
+        new HashSet<>(encoded.keySet()).stream().filter(path -> !wanted.containsKey(path)).forEach(this::remove);
+        pending.removeIf(path -> !wanted.containsKey(path));
+        wanted.keySet().stream()
+              .filter(path -> !encoded.containsKey(path) && pending.add(path))
+              .sorted(Comparator.comparingInt(path -> 2 * Math.abs(wanted.get(path) - index)
+                                                      + (wanted.get(path) < index ? 1 : 0)))
+              .forEach(path -> ioPool.execute(() -> readAhead(path)));
+    }
+
+    private boolean isCached(Path path) {
+        if (skipped.contains(path)) {
+            return true;
+        }
+        if (cached.test(path)) {
+            skipped.add(path);
+            return true;
+        }
+        return false;
+    }
+
+    private void readAhead(Path path) {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        synchronized (this) {
+            if (!pending.contains(path)) {
+                // window moved on before read started
+                return;
+            }
+            reading.put(path, result);
+        }
+        try {
+            byte[] content = readFile(path, () -> !pending.contains(path));
+            synchronized (this) {
+                if (pending.remove(path)) {
+                    averageFileBytes = averageFileBytes * 0.75 + content.length * 0.25;
+                    encoded.put(path, content);
+                    bufferedBytes += content.length;
+                    LOG.debug("File " + path + " read into buffer, " + bufferedBytes / (1024 * 1024)
+                              + "MB buffered.");
+                }
+            }
+            result.complete(content);
+        } catch (IOException e) {
+            pending.remove(path);
+            result.completeExceptionally(e);
+            LOG.debug("Problem reading " + path + ": " + e.getMessage());
+        } finally {
+            reading.remove(path, result);
+        }
+    }
+
+    /**
+     * Reads whole file in large sequential reads.
+     *
+     * @param path      file to read
+     * @param cancelled stops reading if true
+     * @return content of file
+     * @throws IOException if file can't be read or read was cancelled
+     */
+    static byte[] readFile(Path path, BooleanSupplier cancelled) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large to buffer");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.position() < buffer.capacity()) {
+                if (cancelled.getAsBoolean()) {
+                    throw new InterruptedIOException("Read cancelled");
+                }
+                buffer.limit(Math.min(buffer.capacity(), buffer.position() + READ_CHUNK));
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("File shrunk while reading");
+                }
+            }
+            return buffer.array();
+        }
+    }
+
+    /**
+     * Stops buffering, e.g. because another folder is browsed: queued reads are skipped, running ones aborted and
+     * buffered files dropped.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        pending.clear();
+        new HashSet<>(encoded.keySet()).forEach(this::remove);
+    }
+
+    /**
+     * Drops content of given file and a read of it still running, file is read again on next update.
+     */
+    private synchronized void invalidate(Path path) {
+        pending.remove(path);
+        skipped.remove(path);
+        remove(path);
+    }
+
+    private synchronized void remove(Path path) {
+        byte[] content = encoded.remove(path);
+        if (content != null) {
+            bufferedBytes -= content.length;
+        }
+    }
+
+    public interface Inst {
+        /**
+         *
+         * @param folderIndex
+         *            images to be buffered
+         * @param cached
+         *            true for images taken from a cache, they are not buffered
+         * @return configured {@link EncodedBuffer} instance
+         */
+        EncodedBuffer get(@Assisted FolderIndex folderIndex, @Assisted Predicate<Path> cached);
+    }
+}
@@ -3,17 +3,17 @@ package de.moritz.fastimageviewer.image.file;
 import static com.google.common.base.Preconditions.*;
 
 import java.io.File;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
-import java.nio.file.FileSystems;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.BooleanSupplier;
 
 import javax.annotation.Nullable;
 
@@ -23,117 +23,364 @@ import org.slf4j.LoggerFactory;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 
-import de.moritz.fastimageviewer.image.ImageProvider;
+import de.moritz.fastimageviewer.image.AsyncImageProvider;
+import de.moritz.fastimageviewer.image.ImageSizes;
+import de.moritz.fastimageviewer.image.PixelSlabPool;
+import de.moritz.fastimageviewer.main.DiModule.FullImagePool;
 import javafx.scene.image.Image;
 
-public class FileImageProvider implements ImageProvider {
+public class FileImageProvider implements AsyncImageProvider {
 
-    private static final int FORWARD_BUFFER_SIZE = 2;
-    private static final int BACK_BUFFER_SIZE = 1;
-    private static final PathMatcher IMAGE_FILE_PATTERN = FileSystems.getDefault().getPathMatcher( "glob:*.{jpg,jpeg,png,gif,bmp}" );
-    private Path imageFolder;
-    private List<Path> imagePaths = new ArrayList<>();
-    private int currentIndex = 0;
+    /**
+     * viewport size has to change by this factor to reload buffer
+     */
+    private static final double VIEWPORT_TOLERANCE = 0.1;
+    private FolderIndex folderIndex;
+    /**
+     * image shown, null while no image was found in folder
+     */
+    private volatile Path currentPath;
 
     private static final Logger LOG = LoggerFactory.getLogger(FileImageProvider.class);
     private ImageBuffer imageBuffer;
     private ImageBuffer.Inst imageBufferFactory;
+    private EncodedBuffer encodedBuffer;
+    private EncodedBuffer.Inst encodedBufferFactory;
+    private FolderIndex.Inst folderIndexFactory;
+    private ImageLoader imageLoader;
+    private ImageLoader.Inst imageLoaderFactory;
+    private final PreviewCache previewCache;
+    private final PixelCache pixelCache;
+    private final PixelSlabPool slabPool;
+    private volatile double viewportWidth = 0;
+    private volatile double viewportHeight = 0;
+    /**
+     * last image loaded for the user
+     */
+    private Path urgentPath;
+    /**
+     * current image in full resolution while zoomed, not part of buffer budget
+     */
+    private CompletableFuture<Image> fullImage;
+    private Path fullImagePath;
+    private final ExecutorService fullImagePool;
 
     @Inject
-    private FileImageProvider(@Nullable @Assisted String path, ImageBuffer.Inst imageBufferFactory) {
+    private FileImageProvider(@Nullable @Assisted String path, ImageBuffer.Inst imageBufferFactory,
+                              EncodedBuffer.Inst encodedBufferFactory, ImageLoader.Inst imageLoaderFactory,
+                              FolderIndex.Inst folderIndexFactory, PreviewCache previewCache, PixelCache pixelCache,
+                              PixelSlabPool slabPool, @FullImagePool ExecutorService fullImagePool) {
         this.imageBufferFactory = imageBufferFactory;
+        this.encodedBufferFactory = encodedBufferFactory;
+        this.previewCache = previewCache;
+        this.pixelCache = pixelCache;
+        this.slabPool = slabPool;
+        this.fullImagePool = fullImagePool;
+        this.imageLoaderFactory = imageLoaderFactory;
+        this.folderIndexFactory = folderIndexFactory;
         if (path != null) {
             setPath(path);
         }
     }
 
-    private void getFiles() {
-        try( Stream<Path> files = Files.walk(imageFolder).sorted()) {
-            imagePaths = files.filter( path -> IMAGE_FILE_PATTERN.matches( path.getFileName() ) ).collect( Collectors.toList());
-        } catch( IOException e ) {
-            throw new IllegalStateException("Problem on parsing folder: ", e);
-        }
+    @Override
+    public Image getImage(int index) {
+        return getImageAsync(index).join();
     }
 
     @Override
-    public Image getImage(int index) {
+    public CompletableFuture<Image> getImageAsync(int index) {
         if (index < 0 || index > getMaxIndex()) {
             throw new IllegalArgumentException("Index must be between 0  and " + getMaxIndex());
         }
-        imageBuffer.startUpdate(index);
+        return load(folderIndex.get(index));
+    }
+
+    /**
+     * Loads given image for the user, from buffer if possible.
+     */
+    private CompletableFuture<Image> load(Path path) {
+        if (urgentPath != null && !urgentPath.equals(path)) {
+            // previous image is not needed anymore if it is still loading
+            imageLoader.release(urgentPath);
+        }
+        urgentPath = path;
+        keepFullImageOf(path);
+        encodedBuffer.startUpdate(path);
+        imageBuffer.startUpdate(path);
+        double width = viewportWidth;
+        double height = viewportHeight;
         // check buffer
-        Image image = imageBuffer.get(index);
+        Image image = imageBuffer.get(path);
         if (image == null) {
             LOG.debug("Image not in buffer, loading it. :-(");
-            image = loadImage(index);
-        } else {
-            LOG.debug("Image found in buffer... :-)");
+            // joins load of buffer if already started
+            CompletableFuture<Image> load = imageLoader.load(path, ImageLoader.URGENT);
+            load.thenAccept(loaded -> viewed(path, width, height, loaded));
+            return load;
+        }
+        LOG.debug("Image found in buffer... :-)");
+        viewed(path, width, height, image);
+        return CompletableFuture.completedFuture(image);
+    }
+
+    /**
+     * Keeps pixels of images viewed, so going back to them needs no decoding.
+     */
+    private void viewed(Path path, double width, double height, Image image) {
+        if (image != null && width > 0 && height > 0) {
+            pixelCache.viewed(path, width, height, image);
+        }
+    }
+
+    /**
+     * Read stage of loading: takes pixels from pixel cache if possible, otherwise reads preview, file read ahead or
+     * file itself. Stops reading file as soon as load is cancelled.
+     */
+    private ImageLoader.Content readImage(Path path, BooleanSupplier cancelled) throws IOException {
+        double width = viewportWidth;
+        double height = viewportHeight;
+        if (width > 0 && height > 0) {
+            Image pixels = pixelCache.get(path, width, height);
+            if (pixels != null) {
+                return new ImageLoader.Content(pixels);
+            }
+            byte[] preview = previewCache.get(path, width, height, cancelled);
+            if (preview != null) {
+                return new ImageLoader.Content(preview);
+            }
+        }
+        return new ImageLoader.Content(encodedBuffer.read(path, cancelled));
+    }
+
+    /**
+     * @return true if {@link #readImage} takes image from pixel cache or preview cache, so file needs no read ahead
+     */
+    private boolean isCached(Path path) {
+        double width = viewportWidth;
+        double height = viewportHeight;
+        return width > 0 && height > 0
+               && (pixelCache.contains(path, width, height) || previewCache.contains(path, width, height));
+    }
+
+    /**
+     * Decode stage of loading: decodes image scaled down to viewport size. If viewport size is not known or image is
+     * smaller than viewport (e.g. a preview), image is decoded in full resolution.
+     */
+    private Image decodeImage(Path path, ImageLoader.Content content, BooleanSupplier cancelled) {
+        if (content.getImage() != null) {
+            return content.getImage();
+        }
+        double width = viewportWidth;
+        double height = viewportHeight;
+        boolean scale = ImageSizes.isLargerThan(content.getBytes(), width, height);
+        InputStream in = new CancellableInputStream(new ByteArrayInputStream(content.getBytes()), cancelled);
+        if (!scale) {
+            return slabPool.wrap(new Image(in));
+        }
+        Image image = new Image(in, width, height, true, true);
+        if (!cancelled.getAsBoolean()) {
+            previewCache.put(path, width, height, image);
         }
-        return image;
+        return slabPool.wrap(image);
     }
 
-    private Image loadImage(Integer index) {
-        Path path = imagePaths.get(checkNotNull(index));
-        String imageUrl;
+    private Image loadFullImage(Path path) {
+        return new Image(getUrl(path));
+    }
+
+    private String getUrl(Path path) {
         try {
-            imageUrl = path.toUri().toURL().toString();
+            return path.toUri().toURL().toString();
         } catch (MalformedURLException e) {
             throw new IllegalArgumentException("Problem with file path: ", e);
         }
-        return new Image(imageUrl);
     }
 
     private int getMaxIndex() {
-        return imagePaths.size() - 1;
+        return folderIndex == null ? -1 : folderIndex.size() - 1;
+    }
+
+    /**
+     * @return index of current image, might change while folder is scanned
+     */
+    private int getCurrentIndex() {
+        return currentPath == null ? -1 : folderIndex.indexOf(currentPath);
     }
 
     @Override
     public boolean hasNext() {
-        return getMaxIndex() > 0 && currentIndex < getMaxIndex();
+        return getMaxIndex() > 0 && getCurrentIndex() < getMaxIndex();
     }
 
     @Override
     public Image next() {
-        if (hasNext()) {
-            currentIndex++;
-        }
-        return getImage(currentIndex);
+        return nextAsync().join();
     }
 
     @Override
     public Image prev() {
-        if (currentIndex > 0) {
-            currentIndex--;
+        return prevAsync().join();
+    }
+
+    @Override
+    public CompletableFuture<Image> nextAsync() {
+        return skipAsync(1);
+    }
+
+    @Override
+    public CompletableFuture<Image> prevAsync() {
+        return skipAsync(-1);
+    }
+
+    @Override
+    public CompletableFuture<Image> skipAsync(int steps) {
+        if (currentPath == null) {
+            return getImageAsync();
+        }
+        List<Path> paths = folderIndex.getSnapshot();
+        if (paths.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        int index = Collections.binarySearch(paths, currentPath);
+        if (index < 0) {
+            // current image was deleted, move from the gap it left
+            index = steps > 0 ? -index - 2 : -index - 1;
         }
-        return getImage(currentIndex);
+        index = Math.max(0, Math.min(paths.size() - 1, index + steps));
+        currentPath = paths.get(index);
+        return load(currentPath);
     }
 
     @Override
     public void setPath(String path) {
         File file = new File(path);
+        if (folderIndex != null) {
+            // nothing of previous folder is loaded or kept anymore
+            folderIndex.stop();
+            if (urgentPath != null) {
+                // a newer image is requested, so it can be cancelled as well
+                imageLoader.release(urgentPath);
+            }
+            encodedBuffer.stop();
+            imageBuffer.stop();
+        }
+        currentPath = null;
+        // absolute, so index is the same however folder was given
+        Path given = Paths.get(path).toAbsolutePath().normalize();
         if (file.isDirectory()) {
-            this.imageFolder = Paths.get(path);
-            getFiles();
-            currentIndex = 0;
+            folderIndex = folderIndexFactory.get(given);
         }
         // browse folder of given image starting on given image
         else {
-            this.imageFolder = Paths.get(file.getParent());
-            getFiles();
-            // searching given file an set index accordingly.
-            imagePaths.stream().filter(filePath -> filePath.equals(Paths.get(path))).forEach(filePath -> {
-                currentIndex = imagePaths.indexOf(filePath);
-                LOG.debug("Setting index to " + currentIndex + " for image " + file.getName());
-            });
-        }
-        if (imagePaths.size() > 0) {
-            imageBuffer = imageBufferFactory.get(BACK_BUFFER_SIZE, FORWARD_BUFFER_SIZE, getMaxIndex(), this::loadImage);
+            folderIndex = folderIndexFactory.get(given.getParent());
+            Path image = given;
+            if (FolderIndex.isImage(image)) {
+                // show image given at once, no matter how long scanning takes
+                folderIndex.add(image);
+                currentPath = image;
+                LOG.debug("Starting on image " + file.getName());
+            }
         }
+        releaseFullImage();
+        urgentPath = null;
+        imageLoader = imageLoaderFactory.get(new ImageLoader.Decoder() {
+            @Override
+            public ImageLoader.Content read(Path path, BooleanSupplier cancelled) throws IOException {
+                return readImage(path, cancelled);
+            }
+
+            @Override
+            public Image decode(Path path, ImageLoader.Content content, BooleanSupplier cancelled) {
+                return decodeImage(path, content, cancelled);
+            }
+        });
+        encodedBuffer = encodedBufferFactory.get(folderIndex, this::isCached);
+        imageBuffer = imageBufferFactory.get(folderIndex, imageLoader);
+        folderIndex.scan();
     }
 
     @Override
     public Image getImage() {
-        return getImage(currentIndex);
+        return getImageAsync().join();
+    }
+
+    @Override
+    public CompletableFuture<Image> getImageAsync() {
+        if (currentPath != null) {
+            return load(currentPath);
+        }
+        if (folderIndex == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        // show first image as soon as it is found
+        FolderIndex index = folderIndex;
+        return index.getFirstFound().thenCompose(first -> {
+            if (first == null || index != folderIndex) {
+                return CompletableFuture.completedFuture(null);
+            }
+            if (currentPath == null) {
+                currentPath = first;
+            }
+            return load(currentPath);
+        });
+    }
+
+    @Override
+    public void setViewportSize(double width, double height) {
+        boolean changed = Math.abs(width - viewportWidth) > viewportWidth * VIEWPORT_TOLERANCE
+                          || Math.abs(height - viewportHeight) > viewportHeight * VIEWPORT_TOLERANCE;
+        if (changed && width > 0 && height > 0) {
+            LOG.debug("Viewport size changed to " + width + "x" + height);
+            viewportWidth = width;
+            viewportHeight = height;
+            if (imageBuffer != null && currentPath != null) {
+                imageBuffer.reload(currentPath);
+            }
+            if (encodedBuffer != null) {
+                // caches are keyed by viewport size
+                encodedBuffer.recheckCached();
+            }
+        }
+    }
+
+    @Override
+    public Image getFullImage() {
+        return getFullImageAsync().join();
+    }
+
+    @Override
+    public synchronized CompletableFuture<Image> getFullImageAsync() {
+        Path path = currentPath;
+        if (path == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (!path.equals(fullImagePath) || fullImage == null) {
+            LOG.debug("Loading image " + path + " in full resolution.");
+            // not on decode pool, so it does not wait for prefetching
+            fullImage = CompletableFuture.supplyAsync(() -> loadFullImage(path), fullImagePool);
+            fullImagePath = path;
+        }
+        return fullImage;
+    }
+
+    /**
+     * Drops image in full resolution if it is of another image than given one.
+     */
+    private synchronized void keepFullImageOf(Path path) {
+        if (fullImagePath != null && !fullImagePath.equals(path)) {
+            releaseFullImage();
+        }
+    }
+
+    @Override
+    public synchronized void releaseFullImage() {
+        if (fullImage != null) {
+            // a load still running is left to finish, its image is dropped
+            fullImage.cancel(false);
+        }
+        fullImage = null;
+        fullImagePath = null;
     }
 
     public interface Inst {
@@ -142,7 +389,13 @@ public class FileImageProvider implements ImageProvider {
 
     @Override
     public String getInfoForLast() {
-        return imagePaths.get( currentIndex ).toString() + " (" + (currentIndex + 1) +"/" + imagePaths.size() + ")";
+        Path path = currentPath;
+        if (path == null) {
+            return null;
+        }
+        // total grows while scanning
+        return path.toString() + " (" + (folderIndex.indexOf(path) + 1) + "/" + folderIndex.size()
+               + (folderIndex.isScanning() ? "+" : "") + ")";
     }
 
     @Override
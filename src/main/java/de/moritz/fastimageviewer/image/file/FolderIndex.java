@@ -0,0 +1,505 @@
+package de.moritz.fastimageviewer.image.file;
+
+import com.google.inject.Inject;
+import com.google.inject.assistedinject.Assisted;
+import de.moritz.fastimageviewer.main.DiModule.ScanPool;
+import de.moritz.fastimageviewer.main.DiModule.WatchFolders;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Sorted list of all images in a folder and its sub folders. Folders are scanned in parallel in background, the index
+ * can be used while it is filled. Images are sorted by path, so indexes of images found already may change while
+ * scanning. If the folder was scanned before, the index stored by {@link FolderIndexCache} is used at once and only
+ * folders modified since are listed again. After scanning, files created, deleted or renamed are applied to the index
+ * as they happen if folders are watched, and images written to are reported, e.g. while a camera is still writing
+ * them.
+ */
+public class FolderIndex {
+
+    private static final PathMatcher IMAGE_FILE_PATTERN = FileSystems.getDefault().getPathMatcher( "glob:*.{jpg,jpeg,png,gif,bmp}" );
+    /**
+     * minimal time between two updates of sorted list while scanning
+     */
+    private static final long SNAPSHOT_INTERVAL_MS = 200;
+    /**
+     * coarsest resolution of modification times (FAT), a folder modified less than this before it was listed might
+     * change again without a new modification time
+     */
+    private static final long MODIFIED_RESOLUTION_MS = 2000;
+    /**
+     * modification time of folders that have to be listed again on next scan
+     */
+    static final long UNKNOWN = -1;
+    private static final Logger LOG = LoggerFactory.getLogger(FolderIndex.class);
+
+    private final Path root;
+    private final ExecutorService scanPool;
+    private final FolderIndexCache cache;
+    private final boolean watch;
+    private WatchService watchService;
+    private final Map<Path, WatchKey> watchKeys = new ConcurrentHashMap<>();
+    /**
+     * called when index changed outside of scan
+     */
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    /**
+     * called with images whose content changed, before listeners
+     */
+    private final List<Consumer<Path>> modifiedListeners = new CopyOnWriteArrayList<>();
+    private final NavigableSet<Path> paths = new ConcurrentSkipListSet<>();
+    /**
+     * content of folders scanned, to be stored in cache
+     */
+    private final Map<Path, Folder> folders = new ConcurrentHashMap<>();
+    /**
+     * content of folders from last scan
+     */
+    private Map<Path, Folder> cached = Collections.emptyMap();
+    /**
+     * sorted list of paths, rebuilt from paths if changed
+     */
+    private volatile List<Path> snapshot = Collections.emptyList();
+    private volatile boolean changed = false;
+    private volatile long snapshotTime = 0;
+    /**
+     * folders listed or queued to be listed
+     */
+    private final AtomicInteger openFolders = new AtomicInteger();
+    private final CompletableFuture<Path> firstFound = new CompletableFuture<>();
+    private final CompletableFuture<Void> scanned = new CompletableFuture<>();
+    private volatile boolean stopped = false;
+
+    @Inject
+    private FolderIndex(@Assisted Path root, @ScanPool ExecutorService scanPool, FolderIndexCache cache,
+                        @WatchFolders Boolean watch) {
+        this.root = checkNotNull(root);
+        this.scanPool = checkNotNull(scanPool);
+        this.cache = checkNotNull(cache);
+        this.watch = watch;
+    }
+
+    /**
+     * Starts scanning in background. Images known from last scan are available at once. If folders are watched, all
+     * folders scanned are watched until index is stopped.
+     */
+    public void scan() {
+        LOG.debug("Scanning " + root);
+        if (watch) {
+            startWatching();
+        }
+        long start = System.currentTimeMillis();
+        cached = cache.load(root);
+        cached.forEach((folder, content) -> content.getImages().forEach(image -> paths.add(folder.resolve(image))));
+        if (!paths.isEmpty()) {
+            changed = true;
+            firstFound.complete(paths.first());
+        }
+        scanned.thenRun(() -> {
+            LOG.debug("Scanned " + root + ", " + paths.size() + " images found in "
+                      + (System.currentTimeMillis() - start) + "ms.");
+            if (!stopped) {
+                cache.save(root, folders);
+            }
+        });
+        submit(root);
+    }
+
+    /**
+     * Stops scanning, index keeps images found so far.
+     */
+    public void stop() {
+        stopped = true;
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                LOG.debug("Problem closing watch service: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @param listener called (on a background thread) when images were added or removed after scan or by watching
+     */
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param listener called (on a background thread) with each image whose file was written to or replaced, while
+     *                 folders are watched
+     */
+    public void addModifiedListener(Consumer<Path> listener) {
+        modifiedListeners.add(listener);
+    }
+
+    /**
+     * Adds an image known to be in folder, e.g. because user opened it.
+     *
+     * @param path path of image
+     */
+    public void add(Path path) {
+        if (isImage(path) && paths.add(path)) {
+            changed = true;
+            firstFound.complete(path);
+        }
+    }
+
+    /**
+     * @param path path of file
+     * @return true if file name matches supported image types
+     */
+    public static boolean isImage(Path path) {
+        return path.getFileName() != null && IMAGE_FILE_PATTERN.matches(path.getFileName());
+    }
+
+    /**
+     * @return completed with first image found, with null if scan finished without any image
+     */
+    public CompletableFuture<Path> getFirstFound() {
+        return firstFound;
+    }
+
+    /**
+     * @return completed when scan is finished
+     */
+    public CompletableFuture<Void> getScanned() {
+        return scanned;
+    }
+
+    public boolean isScanning() {
+        return !scanned.isDone();
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * @return number of images found so far
+     */
+    public int size() {
+        return getSnapshot().size();
+    }
+
+    /**
+     * @param index between 0 and size - 1
+     * @return path of image
+     */
+    public Path get(int index) {
+        return getSnapshot().get(index);
+    }
+
+    /**
+     * @param path path of image
+     * @return index of image or -1 if not in index
+     */
+    public int indexOf(Path path) {
+        int index = Collections.binarySearch(getSnapshot(), path);
+        return index < 0 ? -1 : index;
+    }
+
+    /**
+     * @return sorted paths of all images found so far
+     */
+    public List<Path> getSnapshot() {
+        if (changed && (System.currentTimeMillis() - snapshotTime > SNAPSHOT_INTERVAL_MS || !isScanning())) {
+            updateSnapshot();
+        }
+        return snapshot;
+    }
+
+    private synchronized void updateSnapshot() {
+        if (changed) {
+            changed = false;
+            snapshot = Collections.unmodifiableList(new ArrayList<>(paths));
+            snapshotTime = System.currentTimeMillis();
+        }
+    }
+
+    private void submit(Path folder) {
+        openFolders.incrementAndGet();
+        scanPool.execute(() -> {
+            try {
+                if (!stopped) {
+                    update(folder);
+                }
+            } finally {
+                if (openFolders.decrementAndGet() == 0) {
+                    updateSnapshot();
+                    firstFound.complete(null);
+                    scanned.complete(null);
+                    listeners.forEach(Runnable::run);
+                }
+            }
+        });
+    }
+
+    /**
+     * Takes content of folder from last scan if folder was not modified since, lists it otherwise.
+     */
+    private void update(Path folder) {
+        Folder old = folders.getOrDefault(folder, cached.get(folder));
+        // before listing, so no file created while listing is missed
+        register(folder);
+        long modified;
+        try {
+            modified = Files.getLastModifiedTime(folder).toMillis();
+        } catch (IOException e) {
+            LOG.debug("Folder " + folder + " is gone.");
+            removeTree(folder);
+            return;
+        }
+        if (old != null && old.getModified() == modified) {
+            folders.put(folder, old);
+            old.getFolders().forEach(sub -> submit(folder.resolve(sub)));
+            return;
+        }
+        Folder now = list(folder, modified);
+        if (now == null) {
+            keep(folder, old);
+        } else if (old != null) {
+            LOG.debug("Folder " + folder + " was modified.");
+            Set<String> images = new HashSet<>(now.getImages());
+            Set<String> subFolders = new HashSet<>(now.getFolders());
+            old.getImages().stream().filter(image -> !images.contains(image))
+               .forEach(image -> remove(folder.resolve(image)));
+            old.getFolders().stream().filter(sub -> !subFolders.contains(sub))
+               .forEach(sub -> removeTree(folder.resolve(sub)));
+        }
+    }
+
+    /**
+     * Adds images of given folder and submits its sub folders.
+     *
+     * @return content of folder or null if it could not be listed
+     */
+    private Folder list(Path folder, long modified) {
+        List<String> images = new ArrayList<>();
+        List<String> subFolders = new ArrayList<>();
+        long listed = System.currentTimeMillis();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder)) {
+            for (Path entry : entries) {
+                if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                    subFolders.add(entry.getFileName().toString());
+                    submit(entry);
+                } else if (isImage(entry)) {
+                    images.add(entry.getFileName().toString());
+                    add(entry);
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("Problem on parsing folder " + folder + ": " + e.getMessage());
+            // images listed so far are kept until folder is listed again
+            folders.put(folder, new Folder(UNKNOWN, images, subFolders));
+            return null;
+        }
+        if (listed - modified < MODIFIED_RESOLUTION_MS) {
+            // files added in same tick after listing would not change modification time
+            modified = UNKNOWN;
+        }
+        Folder content = new Folder(modified, images, subFolders);
+        folders.put(folder, content);
+        return content;
+    }
+
+    /**
+     * Keeps content known from last scan of a folder that could not be listed now, so it is not lost. Folder is
+     * listed again on next scan.
+     */
+    private void keep(Path folder, Folder old) {
+        Folder partial = folders.get(folder);
+        if (old == null || partial == null) {
+            return;
+        }
+        Set<String> images = new LinkedHashSet<>(partial.getImages());
+        images.addAll(old.getImages());
+        Set<String> subFolders = new LinkedHashSet<>(partial.getFolders());
+        old.getFolders().stream().filter(sub -> !partial.getFolders().contains(sub))
+           .forEach(sub -> submit(folder.resolve(sub)));
+        subFolders.addAll(old.getFolders());
+        folders.put(folder, new Folder(UNKNOWN, new ArrayList<>(images), new ArrayList<>(subFolders)));
+    }
+
+    private void remove(Path path) {
+        if (paths.remove(path)) {
+            changed = true;
+        }
+    }
+
+    /**
+     * Removes images of a folder known from last scan and all its sub folders.
+     */
+    private void removeTree(Path folder) {
+        Folder old = folders.getOrDefault(folder, cached.get(folder));
+        if (old != null) {
+            old.getImages().forEach(image -> remove(folder.resolve(image)));
+            old.getFolders().forEach(sub -> removeTree(folder.resolve(sub)));
+        }
+    }
+
+    private void startWatching() {
+        try {
+            watchService = root.getFileSystem().newWatchService();
+        } catch (IOException e) {
+            LOG.warn("Can't watch " + root + ": " + e.getMessage());
+            return;
+        }
+        Thread watcher = new Thread(this::watch, "watch-" + root.getFileName());
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private void register(Path folder) {
+        if (watchService != null && !stopped) {
+            try {
+                watchKeys.put(folder, folder.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY));
+            } catch (IOException | ClosedWatchServiceException e) {
+                LOG.debug("Can't watch folder " + folder + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Applies changes reported for watched folders until index is stopped. All changes available are applied before
+     * listeners are called once.
+     */
+    private void watch() {
+        try {
+            while (!stopped) {
+                WatchKey key = watchService.take();
+                Set<Path> modified = new HashSet<>();
+                do {
+                    apply(key, modified);
+                    key = watchService.poll();
+                } while (key != null);
+                updateSnapshot();
+                modified.forEach(path -> modifiedListeners.forEach(listener -> listener.accept(path)));
+                listeners.forEach(Runnable::run);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            LOG.debug("Stopped watching " + root);
+        }
+    }
+
+    private void apply(WatchKey key, Set<Path> modified) {
+        Path folder = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                // events were lost - drop images gone and list folder again
+                LOG.debug("Missed changes in " + folder);
+                if (paths.removeIf(path -> path.startsWith(folder) && !Files.exists(path))) {
+                    changed = true;
+                }
+                folders.remove(folder);
+                submit(folder);
+                continue;
+            }
+            Path path = folder.resolve((Path) event.context());
+            if (event.kind() == ENTRY_CREATE) {
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    LOG.debug("Folder " + path + " created.");
+                    submit(path);
+                } else if (paths.contains(path)) {
+                    // replaced, e.g. by moving another file onto it
+                    modified.add(path);
+                } else {
+                    add(path);
+                }
+            } else if (event.kind() == ENTRY_MODIFY) {
+                if (paths.contains(path)) {
+                    modified.add(path);
+                }
+            } else if (event.kind() == ENTRY_DELETE) {
+                // folder content might have changed since listed, so drop anything below path
+                if (paths.removeIf(image -> image.startsWith(path))) {
+                    changed = true;
+                }
+                folders.keySet().removeIf(known -> known.startsWith(path));
+                // a moved folder keeps its watch, it has to be registered with its new path
+                watchKeys.entrySet().removeIf(entry -> {
+                    if (entry.getKey().startsWith(path)) {
+                        entry.getValue().cancel();
+                        return true;
+                    }
+                    return false;
+                });
+            }
+        }
+        key.reset();
+    }
+
+    /**
+     * Content of a folder.
+     */
+    static class Folder {
+        private final long modified;
+        private final List<String> images;
+        private final List<String> folders;
+
+        Folder(long modified, List<String> images, List<String> folders) {
+            this.modified = modified;
+            this.images = images;
+            this.folders = folders;
+        }
+
+        /**
+         * @return modification time of folder when listed, {@link #UNKNOWN} if it has to be listed again
+         */
+        long getModified() {
+            return modified;
+        }
+
+        /**
+         * @return file names of images
+         */
+        List<String> getImages() {
+            return images;
+        }
+
+        /**
+         * @return names of sub folders
+         */
+        List<String> getFolders() {
+            return folders;
+        }
+    }
+
+    public interface Inst {
+        FolderIndex get(@Assisted Path root);
+    }
+}
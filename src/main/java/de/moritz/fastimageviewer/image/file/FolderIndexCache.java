@@ -0,0 +1,129 @@
+package de.moritz.fastimageviewer.image.file;
+
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import de.moritz.fastimageviewer.image.file.FolderIndex.Folder;
+import de.moritz.fastimageviewer.main.DiModule.CacheDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stores content of scanned folders on disk, so a folder opened again is known at once and only folders changed
+ * since (by modification time) have to be listed again. There is one file per root folder, containing for every
+ * folder its modification time, its images and its sub folders.
+ */
+@Singleton
+public class FolderIndexCache {
+
+    private static final int MAGIC = 0x46495649;
+    private static final int VERSION = 1;
+    private static final Logger LOG = LoggerFactory.getLogger(FolderIndexCache.class);
+
+    private final Path cacheDir;
+
+    @Inject
+    private FolderIndexCache(@CacheDir Path cacheDir) {
+        this.cacheDir = cacheDir.resolve("index");
+    }
+
+    /**
+     * @param root root folder
+     * @return folders known for given root, empty if there is no index stored
+     */
+    public Map<Path, Folder> load(Path root) {
+        Path file = getFile(root);
+        if (!Files.isRegularFile(file)) {
+            return Collections.emptyMap();
+        }
+        long start = System.currentTimeMillis();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file), 1 << 16)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(root.toString())) {
+                LOG.debug("Ignoring incompatible index " + file);
+                return Collections.emptyMap();
+            }
+            int folderCount = in.readInt();
+            Map<Path, Folder> folders = new HashMap<>(folderCount * 2);
+            for (int i = 0; i < folderCount; i++) {
+                Path folder = root.resolve(in.readUTF());
+                long modified = in.readLong();
+                folders.put(folder, new Folder(modified, readNames(in), readNames(in)));
+            }
+            LOG.debug("Loaded index of " + root + " with " + folderCount + " folders in "
+                      + (System.currentTimeMillis() - start) + "ms.");
+            return folders;
+        } catch (IOException e) {
+            LOG.warn("Problem reading index " + file + ": " + e.getMessage());
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Stores folders of given root, replacing index stored before.
+     *
+     * @param root    root folder
+     * @param folders all folders of root
+     */
+    public void save(Path root, Map<Path, Folder> folders) {
+        Path file = getFile(root);
+        try {
+            Files.createDirectories(cacheDir);
+            Path tmp = Files.createTempFile(cacheDir, "index", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tmp), 1 << 16)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(root.toString());
+                out.writeInt(folders.size());
+                for (Map.Entry<Path, Folder> entry : folders.entrySet()) {
+                    out.writeUTF(root.relativize(entry.getKey()).toString());
+                    out.writeLong(entry.getValue().getModified());
+                    writeNames(out, entry.getValue().getImages());
+                    writeNames(out, entry.getValue().getFolders());
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOG.debug("Saved index of " + root + " to " + file);
+        } catch (IOException e) {
+            LOG.warn("Problem writing index " + file + ": " + e.getMessage());
+        }
+    }
+
+    private Path getFile(Path root) {
+        return cacheDir.resolve(Hashing.sha256().hashString(root.toString(), StandardCharsets.UTF_8) + ".idx");
+    }
+
+    private static List<String> readNames(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(in.readUTF());
+        }
+        return names;
+    }
+
+    private static void writeNames(DataOutputStream out, List<String> names) throws IOException {
+        out.writeInt(names.size());
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+    }
+}
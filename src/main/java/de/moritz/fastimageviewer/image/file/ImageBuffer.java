@@ -3,109 +3,341 @@ package de.moritz.fastimageviewer.image.file;
 import com.google.common.eventbus.EventBus;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
+import de.moritz.fastimageviewer.image.PixelSlabPool;
 import de.moritz.fastimageviewer.main.BufferState;
+import de.moritz.fastimageviewer.main.DiModule.BufferBudget;
 import javafx.scene.image.Image;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.function.Function;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+/**
+ * Holds decoded images around the current index. The size of the window is not given as image count but derived
+ * from a memory budget in bytes: the more memory the images of a folder need, the less of them are buffered. This is
+ * the inner tier of buffering, images further ahead are held undecoded by {@link EncodedBuffer}.
+ */
 public class ImageBuffer {
 
-    private int forward;
-    private int backward;
-    private volatile Map<Integer, Image> imageBuffer = new HashMap<>();
-    private Integer maxIndex;
+    /**
+     * upper bound of images to buffer ahead, even if budget would allow more - only a safety cap, window is set by
+     * budget
+     */
+    private static final int MAX_FORWARD = 50;
+    /**
+     * upper bound of images kept after viewed
+     */
+    private static final int MAX_BACKWARD = 10;
+    /**
+     * size assumed for images as long as nothing was decoded (12MP)
+     */
+    private static final long DEFAULT_IMAGE_BYTES = 4000L * 3000 * 4;
+    /**
+     * share of budget used for forward buffer
+     */
+    private static final double FORWARD_SHARE = 0.75;
+
+    private final long budget;
+    private volatile int forward;
+    private volatile int backward;
+    private final Map<Path, Image> imageBuffer = new ConcurrentHashMap<>();
+    /**
+     * loads that are queued or running on image loader
+     */
+    private final Map<Path, CompletableFuture<Image>> pending = new ConcurrentHashMap<>();
+    private long bufferedBytes = 0;
+    private volatile double averageImageBytes = DEFAULT_IMAGE_BYTES;
+    private final FolderIndex folderIndex;
     private static final Logger LOG = LoggerFactory.getLogger(ImageBuffer.class);
-    private Function<Integer, Image> loadImage;
-    private CompletableFuture<Void> updateTask;
+    private final ImageLoader loader;
+    private volatile Path currentPath;
+    /**
+     * current image whose file changed, it is shown again once loaded
+     */
+    private Path refresh;
+    /**
+     * incremented on {@link #reload(Path)}, loads started before are not put into buffer
+     */
+    private volatile int generation = 0;
+    /**
+     * true once another folder is browsed, nothing is loaded anymore
+     */
+    private volatile boolean stopped = false;
     private volatile EventBus eventBus;
+    private final PixelSlabPool slabPool;
 
     @Inject
-    private ImageBuffer(@Assisted("backward") Integer backward, @Assisted("forward") Integer forward,
-                        @Assisted("maxIndex") Integer maxIndex, @Assisted Function<Integer, Image> loadImage,
-                        EventBus eventBus) {
+    private ImageBuffer(@Assisted FolderIndex folderIndex, @Assisted ImageLoader loader, EventBus eventBus,
+                        @BufferBudget Long budget, PixelSlabPool slabPool) {
         this.eventBus = eventBus;
-        this.loadImage = checkNotNull(loadImage);
-        checkArgument(backward >= 0 && forward >= 0 && maxIndex >= 0);
-        this.backward = backward;
-        this.forward = forward;
-        this.maxIndex = maxIndex;
-    }
-
-    public void startUpdate(int index) {
-        // cancel previous update task
-        if (updateTask != null) {
-            if (!updateTask.isDone()) {
-                updateTask.cancel(true);
-                LOG.debug("Canceled update");
-            }
-        }
-        updateTask = CompletableFuture.runAsync(() -> updateBuffer(index));
+        this.slabPool = slabPool;
+        this.loader = checkNotNull(loader);
+        this.folderIndex = checkNotNull(folderIndex);
+        checkArgument(budget >= 0);
+        this.budget = budget;
+        updateDepth();
+        // images added or removed around current image change the window
+        folderIndex.addListener(this::updateBuffer);
+        folderIndex.addModifiedListener(this::invalidate);
+        LOG.debug("Buffer budget is " + budget / (1024 * 1024) + "MB");
     }
 
-    public Image get(int index) {
-        return imageBuffer.get(index);
+    /**
+     * Memory needed by a decoded image.
+     *
+     * @param image decoded image
+     * @return width * height * 4 bytes
+     */
+    public static long bytesOf(Image image) {
+        return (long) image.getWidth() * (long) image.getHeight() * 4;
     }
 
-    private void updateBuffer(int index) {
-        LOG.debug("updateing buffer for index " + index);
+    /**
+     * Centers buffer on given image.
+     *
+     * @param path current image
+     */
+    public void startUpdate(Path path) {
+        currentPath = path;
+        updateBuffer();
+    }
+
+    /**
+     * Drops all buffered images and loads window around given image again, e.g. because images should be decoded
+     * with another size.
+     *
+     * @param path current image
+     */
+    public synchronized void reload(Path path) {
+        generation++;
+        pending.clear();
+        loader.invalidate();
+        forget(currentPath);
+        new HashSet<>(imageBuffer.keySet()).forEach(this::remove);
+        LOG.debug("Reloading buffer.");
+        startUpdate(path);
+    }
 
+    public Image get(Path path) {
+        return imageBuffer.get(path);
+    }
+
+    /**
+     * Stops buffering, e.g. because another folder is browsed: cancels loads nobody waits for and releases buffered
+     * images. Current image might still be shown, it is left to garbage collector.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        generation++;
+        pending.clear();
+        loader.invalidate();
+        forget(currentPath);
+        new HashSet<>(imageBuffer.keySet()).forEach(this::remove);
+        LOG.debug("Buffer stopped.");
+    }
+
+    /**
+     * Drops image of a file that changed and forgets its load, it is loaded again on next update.
+     */
+    private synchronized void invalidate(Path path) {
+        pending.remove(path);
+        loader.invalidate(path);
+        if (path.equals(currentPath)) {
+            forget(path);
+            refresh = path;
+        } else {
+            remove(path);
+        }
+    }
+
+    /**
+     * Drops current image without releasing it: it might still be on its way to the screen, so its slab is left to
+     * garbage collector.
+     */
+    private void forget(Path path) {
+        Image shown = path == null ? null : imageBuffer.remove(path);
+        if (shown != null) {
+            bufferedBytes -= bytesOf(shown);
+        }
+    }
+
+    private synchronized void updateBuffer() {
+        List<Path> paths = folderIndex.getSnapshot();
+        int index = currentPath == null ? -1 : Collections.binarySearch(paths, currentPath);
+        if (index < 0 || stopped) {
+            return;
+        }
+        LOG.debug("updateing buffer for index " + index + " (backward " + backward + ", forward " + forward + ")");
+        int maxIndex = paths.size() - 1;
         int right = index + forward <= maxIndex ? index + forward : maxIndex;
         int left = index - backward >= 0 ? index - backward : 0;
+        Set<Path> window = new HashSet<>(paths.subList(left, right + 1));
         // remove images out of range
-        Set<Integer> keys = new HashSet<>(imageBuffer.keySet());
-        keys.stream().filter(i -> i < left || i > right).forEach(i -> {
-            LOG.debug("Removing image " + i + " from buffer.");
-            imageBuffer.remove(i);
+        new HashSet<>(imageBuffer.keySet()).stream().filter(path -> !window.contains(path)).forEach(path -> {
+            LOG.debug("Removing image " + path + " from buffer.");
+            remove(path);
+        });
+        // cancel loads out of range
+        new HashSet<>(pending.keySet()).stream().filter(path -> !window.contains(path)).forEach(path -> {
+            pending.remove(path);
+            if (loader.cancel(path)) {
+                LOG.debug("Canceled load of image " + path);
+            }
         });
-        // add all that are not in buff but in range
+        // add all that are not in buff, in range or already pending ones get priority by distance to index
         for (int i = left; i <= right; i++) {
-            if (imageBuffer.get(i) == null) {
-                imageBuffer.put(i, loadImage.apply(i));
-                LOG.debug("image " + i + " loaded into buffer.");
-                updateBufferState(index);
+            Path path = paths.get(i);
+            if (imageBuffer.get(path) == null) {
+                submitLoad(path, 2 * Math.abs(i - index) + (i < index ? 1 : 0));
+            }
+        }
+        updateBufferState();
+        LOG.debug("Loads " + loader.getMetrics());
+    }
+
+    /**
+     * Requests image from loader, priority is nearest to index first and forward before backward.
+     */
+    private void submitLoad(Path path, int priority) {
+        CompletableFuture<Image> load = loader.load(path, priority);
+        if (pending.put(path, load) == load) {
+            // already waiting for this load
+            return;
+        }
+        int loadGeneration = generation;
+        load.thenAccept(image -> put(path, load, image, loadGeneration)).whenComplete((v, e) -> {
+            pending.remove(path, load);
+            if (e != null && !load.isCancelled()) {
+                LOG.warn("Problem loading image " + path + " into buffer: " + e.getMessage());
             }
+            if (pending.isEmpty() && updateDepth()) {
+                // measured images are smaller than assumed - buffer grows
+                updateBuffer();
+            } else {
+                updateBufferState();
+            }
+        });
+    }
+
+    private synchronized void put(Path path, CompletableFuture<Image> load, Image image, int loadGeneration) {
+        List<Path> paths = folderIndex.getSnapshot();
+        int current = Collections.binarySearch(paths, currentPath);
+        int index = Collections.binarySearch(paths, path);
+        if (loadGeneration != generation || pending.get(path) != load || current < 0 || index < current - backward
+            || index > current + forward) {
+            // window moved on or file changed while image was loading
+            LOG.debug("Dropping outdated image " + path);
+            loader.getMetrics().wasted();
+            return;
+        }
+        long bytes = bytesOf(image);
+        averageImageBytes = averageImageBytes * 0.75 + bytes * 0.25;
+        Image old = imageBuffer.put(path, image);
+        if (old != null && old != image) {
+            bufferedBytes -= bytesOf(old);
+            slabPool.release(old);
+        }
+        bufferedBytes += bytes;
+        if (path.equals(refresh) && path.equals(currentPath)) {
+            refresh = null;
+            eventBus.post(image);
         }
+        LOG.debug("image " + path + " loaded into buffer, " + bufferedBytes / (1024 * 1024) + "MB buffered.");
+        evictOverBudget(paths, current);
     }
 
-    private void updateBufferState(int index) {
-        // backward buffer
+    private synchronized void remove(Path path) {
+        Image image = imageBuffer.remove(path);
+        if (image != null) {
+            bufferedBytes -= bytesOf(image);
+            slabPool.release(image);
+        }
+    }
+
+    /**
+     * Drops images furthest from current index until buffer fits into budget. Current image is never dropped. Images
+     * not in index anymore are dropped first.
+     */
+    private void evictOverBudget(List<Path> paths, int current) {
+        while (bufferedBytes > budget) {
+            Path furthest = imageBuffer.keySet().stream()
+                                       .filter(path -> !path.equals(currentPath))
+                                       .max(Comparator.comparingInt(path -> distance(paths, path, current)))
+                                       .orElse(null);
+            if (furthest == null) {
+                return;
+            }
+            LOG.debug("Buffer over budget, removing image " + furthest);
+            remove(furthest);
+        }
+    }
+
+    private static int distance(List<Path> paths, Path path, int current) {
+        int index = Collections.binarySearch(paths, path);
+        return index < 0 ? Integer.MAX_VALUE : Math.abs(index - current);
+    }
+
+    /**
+     * Calculates buffer depth from budget and average size of decoded images. Without budget only current image is
+     * loaded.
+     *
+     * @return true if buffer depth has grown
+     */
+    private synchronized boolean updateDepth() {
+        int oldForward = forward;
+        int oldBackward = backward;
+        forward = budget == 0 ? 0
+                              : (int) Math.max(1, Math.min(MAX_FORWARD, budget * FORWARD_SHARE / averageImageBytes));
+        backward = (int) Math.max(0, Math.min(MAX_BACKWARD, budget * (1 - FORWARD_SHARE) / averageImageBytes));
+        return forward > oldForward || backward > oldBackward;
+    }
+
+    private void updateBufferState() {
+        List<Path> paths = folderIndex.getSnapshot();
+        int index = currentPath == null ? -1 : Collections.binarySearch(paths, currentPath);
+        if (index < 0) {
+            return;
+        }
+        // count only positions that exist in folder, so buffer is full at both ends of the folder
+        int backwardSize = Math.min(backward, index);
+        int forwardSize = Math.min(forward, paths.size() - 1 - index);
         int backBufferCount = 0;
-        for (int i = index-1; i > index - backward; i--) {
-            if (imageBuffer.get(i) != null) {
+        for (int i = index - backwardSize; i < index; i++) {
+            if (imageBuffer.get(paths.get(i)) != null) {
                 backBufferCount++;
             }
         }
         int forwardBufferCount = 0;
-        for (int i = index; i < index + forward; i++) {
-            if (imageBuffer.get(i) != null) {
+        for (int i = index + 1; i <= index + forwardSize; i++) {
+            if (imageBuffer.get(paths.get(i)) != null) {
                 forwardBufferCount++;
             }
         }
-        eventBus.post(new BufferState((double) forwardBufferCount / forward,
-                                      (double) backBufferCount / backward));
+        eventBus.post(new BufferState(forwardSize == 0 ? 1 : (double) forwardBufferCount / forwardSize,
+                                      backwardSize == 0 ? 1 : (double) backBufferCount / backwardSize, forward));
     }
 
     public interface Inst {
         /**
          *
-         * @param backward
-         *            count of images that kept in buffer after viewed
-         * @param forward
-         *            count of images buffer
+         * @param folderIndex
+         *            images to be buffered
+         * @param loader
+         *            loads images
          * @return configured {@link ImageBuffer} instance
          */
-        ImageBuffer get(@Assisted("backward") Integer backward, @Assisted("forward") Integer forward,
-                        @Assisted("maxIndex") Integer maxIndex, @Assisted Function<Integer, Image> loadImage);
+        ImageBuffer get(@Assisted FolderIndex folderIndex, @Assisted ImageLoader loader);
     }
 
 }
@@ -0,0 +1,353 @@
+package de.moritz.fastimageviewer.image.file;
+
+import com.google.inject.Inject;
+import com.google.inject.assistedinject.Assisted;
+import de.moritz.fastimageviewer.main.DiModule.DecodePool;
+import de.moritz.fastimageviewer.main.DiModule.LoadPool;
+import de.moritz.fastimageviewer.main.DiModule.ReadAhead;
+import javafx.scene.image.Image;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Loads images in two stages: files are read into memory on load pool, then decoded on decode pool. So a slow read
+ * (e.g. network share) does not block a decode thread, and many reads can wait for storage at once while decoding
+ * uses as many threads as there are cpus. Reading ahead is limited: at most {@code readAhead} loads are read but not
+ * decoded yet, further reads wait until a decode is done.
+ * <p>
+ * There is at most one load per image: requesting an image that is already queued or loading returns the existing
+ * future. Queued loads are run in order of priority in both stages, so an image the user waits for ({@link #URGENT})
+ * is read and decoded before any prefetched image. Loads nobody is interested in anymore can be cancelled, running
+ * ones are aborted by {@link Decoder} as soon as it notices.
+ */
+public class ImageLoader {
+
+    /**
+     * priority of images the user is waiting for, prefetch priorities are >= 0 (distance to current image)
+     */
+    public static final int URGENT = -1;
+    /**
+     * priority of released loads, until buffer sets a new one
+     */
+    private static final int RELEASED = Integer.MAX_VALUE;
+
+    private static final Logger LOG = LoggerFactory.getLogger(ImageLoader.class);
+
+    private final Decoder decoder;
+    private final ExecutorService loadPool;
+    private final ExecutorService decodePool;
+    private final int readAhead;
+    private final LoadMetrics metrics;
+    private final PriorityBlockingQueue<Load> readQueue = new PriorityBlockingQueue<>();
+    private final PriorityBlockingQueue<Load> decodeQueue = new PriorityBlockingQueue<>();
+    private final Map<Path, Load> loads = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    /**
+     * loads taken from read queue and not finished yet
+     */
+    private int inFlight = 0;
+
+    @Inject
+    private ImageLoader(@Assisted Decoder decoder, @LoadPool ExecutorService loadPool,
+                        @DecodePool ExecutorService decodePool, @ReadAhead Integer readAhead, LoadMetrics metrics) {
+        checkArgument(readAhead > 0);
+        this.decoder = checkNotNull(decoder);
+        this.loadPool = checkNotNull(loadPool);
+        this.decodePool = checkNotNull(decodePool);
+        this.readAhead = readAhead;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Requests given image. If this image is already requested the existing future is returned, if it is still
+     * queued it gets the new priority - unless it is {@link #URGENT} already.
+     *
+     * @param path     path of image
+     * @param priority {@link #URGENT} or distance to current image, lower is loaded first
+     * @return future completed with loaded image
+     */
+    public synchronized CompletableFuture<Image> load(Path path, int priority) {
+        Load load = loads.get(path);
+        if (load == null) {
+            load = new Load(path, priority, sequence.incrementAndGet());
+            loads.put(path, load);
+            readQueue.add(load);
+            updateQueues();
+            // every execution reads the most important load queued at that time
+            loadPool.execute(this::readNext);
+        } else if (priority != load.priority && load.priority != URGENT) {
+            LOG.debug("Changing priority of image " + path + " to " + priority);
+            // running loads keep priority too, so they are not cancelled while someone waits
+            setPriority(load, priority);
+        }
+        return load.future;
+    }
+
+    /**
+     * Tells that nobody waits for given image anymore. Its load then is treated like a prefetch, so it
+     * can be cancelled if it is not buffered.
+     *
+     * @param path path of image
+     */
+    public synchronized void release(Path path) {
+        Load load = loads.get(path);
+        if (load != null && load.priority == URGENT) {
+            setPriority(load, RELEASED);
+        }
+    }
+
+    private void setPriority(Load load, int priority) {
+        boolean toRead = readQueue.remove(load);
+        boolean toDecode = decodeQueue.remove(load);
+        load.priority = priority;
+        if (toRead) {
+            readQueue.add(load);
+        }
+        if (toDecode) {
+            decodeQueue.add(load);
+        }
+    }
+
+    /**
+     * Cancels load of given image if nobody waits for it. If it is already running the decoder is asked to stop.
+     *
+     * @param path path of image
+     * @return true if load was cancelled
+     */
+    public synchronized boolean cancel(Path path) {
+        Load load = loads.get(path);
+        if (load != null && load.priority != URGENT) {
+            loads.remove(path);
+            cancel(load);
+            return true;
+        }
+        return false;
+    }
+
+    private void cancel(Load load) {
+        load.cancelled = true;
+        if (readQueue.remove(load)) {
+            metrics.cancelledQueued();
+        } else if (decodeQueue.remove(load)) {
+            // read for nothing
+            metrics.abortedRunning();
+            finish(load);
+        }
+        updateQueues();
+        load.future.cancel(false);
+    }
+
+    /**
+     * @return counters of all loaders
+     */
+    public LoadMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Cancels all loads nobody waits for and forgets about the others, so following requests load images again. Used
+     * if loaded images would be different now (e.g. other size).
+     */
+    public synchronized void invalidate() {
+        loads.values().stream().filter(load -> load.priority != URGENT).forEach(this::cancel);
+        loads.clear();
+    }
+
+    /**
+     * Forgets load of given image, so following requests load it again, e.g. because its file changed. Load is
+     * cancelled if nobody waits for it.
+     *
+     * @param path path of image
+     */
+    public synchronized void invalidate(Path path) {
+        Load load = loads.remove(path);
+        if (load != null && load.priority != URGENT) {
+            cancel(load);
+        }
+    }
+
+    /**
+     * First stage: reads most important load queued, if read ahead limit allows.
+     */
+    private void readNext() {
+        Load load;
+        synchronized (this) {
+            if (inFlight >= readAhead) {
+                // read later, when a decode is done
+                return;
+            }
+            load = readQueue.poll();
+            if (load == null) {
+                return;
+            }
+            inFlight++;
+            updateQueues();
+        }
+        try {
+            long start = System.nanoTime();
+            load.content = decoder.read(load.path, () -> load.cancelled);
+            metrics.read(load.content.size(), System.nanoTime() - start);
+        } catch (IOException | RuntimeException e) {
+            load.future.completeExceptionally(e);
+            finish(load);
+            return;
+        }
+        synchronized (this) {
+            if (load.cancelled) {
+                LOG.debug("Load of image " + load.path + " aborted while reading.");
+                metrics.abortedRunning();
+                finish(load);
+                return;
+            }
+            decodeQueue.add(load);
+            updateQueues();
+        }
+        decodePool.execute(this::decodeNext);
+    }
+
+    /**
+     * Second stage: decodes most important load read.
+     */
+    private void decodeNext() {
+        Load load = decodeQueue.poll();
+        if (load == null) {
+            // load was cancelled
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            Image image = decoder.decode(load.path, load.content, () -> load.cancelled);
+            if (load.cancelled) {
+                LOG.debug("Load of image " + load.path + " aborted.");
+                metrics.abortedRunning();
+            } else {
+                metrics.decoded(System.nanoTime() - start);
+                metrics.completed();
+                load.future.complete(image);
+            }
+        } catch (RuntimeException e) {
+            load.future.completeExceptionally(e);
+        } finally {
+            finish(load);
+        }
+    }
+
+    /**
+     * Frees read ahead taken by given load and lets next load be read.
+     */
+    private synchronized void finish(Load load) {
+        load.content = null;
+        loads.remove(load.path, load);
+        inFlight--;
+        updateQueues();
+        if (!readQueue.isEmpty()) {
+            loadPool.execute(this::readNext);
+        }
+    }
+
+    private void updateQueues() {
+        metrics.queues(readQueue.size(), decodeQueue.size(), inFlight);
+    }
+
+    private static class Load implements Comparable<Load> {
+        private final Path path;
+        private final long sequence;
+        private volatile int priority;
+        private volatile boolean cancelled = false;
+        private volatile Content content;
+        private final CompletableFuture<Image> future = new CompletableFuture<>();
+
+        private Load(Path path, int priority, long sequence) {
+            this.path = path;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Load other) {
+            int result = Integer.compare(priority, other.priority);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Result of read stage: bytes to be decoded, or an image that needs no decoding.
+     */
+    public static class Content {
+        private final byte[] bytes;
+        private final Image image;
+
+        public Content(byte[] bytes) {
+            this.bytes = checkNotNull(bytes);
+            this.image = null;
+        }
+
+        public Content(Image image) {
+            this.bytes = null;
+            this.image = checkNotNull(image);
+        }
+
+        /**
+         * @return bytes to decode, null if image is ready
+         */
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return image ready to show, null if bytes have to be decoded
+         */
+        public Image getImage() {
+            return image;
+        }
+
+        private long size() {
+            return bytes == null ? 0 : bytes.length;
+        }
+    }
+
+    public interface Decoder {
+        /**
+         * Reads everything needed to decode image into memory. Runs on load pool, may block on storage.
+         *
+         * @param path      path of image
+         * @param cancelled true if image is not needed anymore
+         * @return content to decode
+         * @throws IOException if image can't be read
+         */
+        Content read(Path path, BooleanSupplier cancelled) throws IOException;
+
+        /**
+         * Decodes image. Should check regularly if load was cancelled and stop early in this case.
+         *
+         * @param path      path of image
+         * @param content   content read for image
+         * @param cancelled true if image is not needed anymore
+         * @return decoded image, may be incomplete if cancelled
+         */
+        Image decode(Path path, Content content, BooleanSupplier cancelled);
+    }
+
+    public interface Inst {
+        /**
+         *
+         * @param decoder
+         *            loads image
+         * @return configured {@link ImageLoader} instance
+         */
+        ImageLoader get(@Assisted Decoder decoder);
+    }
+}
@@ -0,0 +1,135 @@
+package de.moritz.fastimageviewer.image.file;
+
+import com.google.inject.Singleton;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts what happened to image loads, to see how much work is spent on images never shown, and how fast and how
+ * busy read and decode stages are.
+ */
+@Singleton
+public class LoadMetrics {
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong cancelledQueued = new AtomicLong();
+    private final AtomicLong abortedRunning = new AtomicLong();
+    private final AtomicLong wasted = new AtomicLong();
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong readNanos = new AtomicLong();
+    private final AtomicLong decodes = new AtomicLong();
+    private final AtomicLong decodeNanos = new AtomicLong();
+    private volatile int readQueue = 0;
+    private volatile int decodeQueue = 0;
+    private volatile int inFlight = 0;
+
+    /**
+     * a load finished and its image was delivered
+     */
+    void completed() {
+        completed.incrementAndGet();
+    }
+
+    /**
+     * a load was cancelled before it started
+     */
+    void cancelledQueued() {
+        cancelledQueued.incrementAndGet();
+    }
+
+    /**
+     * a running load was stopped before image was decoded completely
+     */
+    void abortedRunning() {
+        abortedRunning.incrementAndGet();
+    }
+
+    /**
+     * an image was loaded completely but was not needed anymore
+     */
+    void wasted() {
+        wasted.incrementAndGet();
+    }
+
+    /**
+     * a file was read into memory
+     */
+    void read(long bytes, long nanos) {
+        reads.incrementAndGet();
+        bytesRead.addAndGet(bytes);
+        readNanos.addAndGet(nanos);
+    }
+
+    /**
+     * an image was decoded completely
+     */
+    void decoded(long nanos) {
+        decodes.incrementAndGet();
+        decodeNanos.addAndGet(nanos);
+    }
+
+    /**
+     * current depth of stage queues
+     */
+    void queues(int readQueue, int decodeQueue, int inFlight) {
+        this.readQueue = readQueue;
+        this.decodeQueue = decodeQueue;
+        this.inFlight = inFlight;
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getCancelledQueued() {
+        return cancelledQueued.get();
+    }
+
+    public long getAbortedRunning() {
+        return abortedRunning.get();
+    }
+
+    public long getWasted() {
+        return wasted.get();
+    }
+
+    /**
+     * @return loads waiting to be read
+     */
+    public int getReadQueue() {
+        return readQueue;
+    }
+
+    /**
+     * @return loads read and waiting to be decoded
+     */
+    public int getDecodeQueue() {
+        return decodeQueue;
+    }
+
+    /**
+     * @return bytes read per second by one read, 0 if nothing was read
+     */
+    public double getReadBytesPerSecond() {
+        long nanos = readNanos.get();
+        return nanos == 0 ? 0 : bytesRead.get() * 1e9 / nanos;
+    }
+
+    /**
+     * @return average time to decode an image in ms, 0 if nothing was decoded
+     */
+    public double getAverageDecodeMs() {
+        long count = decodes.get();
+        return count == 0 ? 0 : decodeNanos.get() / 1e6 / count;
+    }
+
+    @Override
+    public String toString() {
+        return "completed: " + completed + ", cancelled before start: " + cancelledQueued + ", aborted: "
+               + abortedRunning + ", wasted: " + wasted + "; read: " + reads + " files, "
+               + Math.round(getReadBytesPerSecond() / (1024 * 1024)) + "MB/s, " + readQueue + " queued, "
+               + inFlight + " in flight; decode: " + decodes + " images, " + Math.round(getAverageDecodeMs())
+               + "ms each, " + decodeQueue + " queued";
+    }
+}
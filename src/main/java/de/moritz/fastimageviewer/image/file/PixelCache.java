@@ -0,0 +1,351 @@
+package de.moritz.fastimageviewer.image.file;
+
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import de.moritz.fastimageviewer.image.PixelSlabPool;
+import de.moritz.fastimageviewer.main.DiModule.CacheDir;
+import de.moritz.fastimageviewer.main.DiModule.PixelCacheSize;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelBuffer;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Keeps decoded pixels of the images viewed last in memory-mapped files. Images are handed out as
+ * {@link WritableImage} backed by the mapped file, so they are neither decoded nor copied into the heap again, and
+ * the operating system decides how much of them stays in memory. Entries are keyed like {@link PreviewCache}.
+ */
+@Singleton
+public class PixelCache {
+
+    /**
+     * width and height in front of pixels
+     */
+    private static final int HEADER_BYTES = 8;
+    /**
+     * pixels copied and written at once
+     */
+    private static final int WRITE_CHUNK = 4 * 1024 * 1024;
+    /**
+     * images waiting to be written at most, further images are not stored while writer lags behind
+     */
+    private static final int MAX_QUEUED_IMAGES = 2;
+    private static final Logger LOG = LoggerFactory.getLogger(PixelCache.class);
+
+    private final Path folder;
+    private final int maxImages;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "pixel-cache");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * file names in order of last view, null until folder was read
+     */
+    private Set<String> entries;
+    /**
+     * files evicted but not deleted yet: a file stays mapped until its image is collected, and mapped files can't be
+     * deleted on Windows
+     */
+    private final Set<Path> undeleted = new LinkedHashSet<>();
+    /**
+     * images handed to writer and not written yet, each keeps its pixel slab from being reused
+     */
+    private final AtomicInteger queuedImages = new AtomicInteger();
+    private final PixelSlabPool slabPool;
+
+    @Inject
+    private PixelCache(@CacheDir Path cacheDir, @PixelCacheSize Integer maxImages, PixelSlabPool slabPool) {
+        checkArgument(maxImages >= 0);
+        this.slabPool = slabPool;
+        this.folder = cacheDir.resolve("pixels");
+        this.maxImages = maxImages;
+    }
+
+    /**
+     * @param path   image file
+     * @param width  viewport width the image was decoded for
+     * @param height viewport height the image was decoded for
+     * @return image backed by mapped pixels or null if current version of file is not cached
+     */
+    public Image get(Path path, double width, double height) {
+        if (maxImages == 0) {
+            return null;
+        }
+        String name = getName(path, width, height);
+        if (name == null || !isKnown(name)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(folder.resolve(name), StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.nativeOrder());
+            int imageWidth = mapped.getInt();
+            int imageHeight = mapped.getInt();
+            IntBuffer pixels = pixelsOf(mapped);
+            if (pixels.remaining() < imageWidth * imageHeight) {
+                throw new IOException("file too short");
+            }
+            // mapping stays valid after channel is closed
+            return new WritableImage(new PixelBuffer<>(imageWidth, imageHeight, pixels,
+                                                       PixelFormat.getIntArgbPreInstance()));
+        } catch (IOException | RuntimeException e) {
+            LOG.debug("Problem reading pixels of " + path + ": " + e.getMessage());
+            remove(name);
+            return null;
+        }
+    }
+
+    /**
+     * @param path   image file
+     * @param width  viewport width the image was decoded for
+     * @param height viewport height the image was decoded for
+     * @return true if pixels of current version of file are cached, they are not read
+     */
+    public boolean contains(Path path, double width, double height) {
+        if (maxImages == 0) {
+            return false;
+        }
+        String name = getName(path, width, height);
+        return name != null && isCached(name);
+    }
+
+    /**
+     * Marks image as viewed, its pixels are stored in background if not cached yet.
+     *
+     * @param path   image file
+     * @param width  viewport width the image was decoded for
+     * @param height viewport height the image was decoded for
+     * @param image  decoded image
+     */
+    public void viewed(Path path, double width, double height, Image image) {
+        if (maxImages == 0 || image.isError()) {
+            return;
+        }
+        if (queuedImages.incrementAndGet() > MAX_QUEUED_IMAGES) {
+            queuedImages.decrementAndGet();
+            LOG.debug("Pixel writer lags behind, not storing pixels of " + path);
+            return;
+        }
+        if (!slabPool.acquire(image)) {
+            // pixels of an image released already might be overwritten
+            queuedImages.decrementAndGet();
+            return;
+        }
+        writer.execute(() -> {
+            try {
+                String name = getName(path, width, height);
+                if (name == null) {
+                    return;
+                }
+                if (isKnown(name)) {
+                    touch(folder.resolve(name));
+                } else {
+                    write(name, image);
+                }
+            } finally {
+                slabPool.release(image);
+                queuedImages.decrementAndGet();
+            }
+        });
+    }
+
+    private static IntBuffer pixelsOf(ByteBuffer mapped) {
+        mapped.position(HEADER_BYTES);
+        return mapped.slice().order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    private static String getName(Path path, double width, double height) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            String key = path.toAbsolutePath() + "|" + attributes.size() + "|" + attributes.lastModifiedTime().toMillis()
+                         + "|" + Math.round(width) + "x" + Math.round(height);
+            return Hashing.sha256().hashString(key, StandardCharsets.UTF_8).toString();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private synchronized boolean isCached(String name) {
+        // keeps LRU order
+        return getEntries().contains(name);
+    }
+
+    private synchronized boolean isKnown(String name) {
+        Set<String> known = getEntries();
+        if (known.remove(name)) {
+            // moves entry to end of LRU order
+            known.add(name);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Copies pixels into a new file, premultiplied argb in native byte order as expected by {@link PixelBuffer}.
+     * File is written, not mapped, so it can be moved and deleted as soon as it is written.
+     */
+    private void write(String name, Image image) {
+        int width = (int) image.getWidth();
+        int height = (int) image.getHeight();
+        Path file = folder.resolve(name);
+        Path tmp = null;
+        try {
+            retryDeletes();
+            Files.createDirectories(folder);
+            tmp = Files.createTempFile(folder, "pixels", ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.nativeOrder());
+                header.putInt(width).putInt(height).flip();
+                writeFully(channel, header);
+                int rows = Math.max(1, WRITE_CHUNK / (width * 4));
+                ByteBuffer chunk = ByteBuffer.allocateDirect(rows * width * 4).order(ByteOrder.nativeOrder());
+                for (int y = 0; y < height; y += rows) {
+                    int count = Math.min(rows, height - y);
+                    chunk.clear();
+                    image.getPixelReader().getPixels(0, y, width, count, PixelFormat.getIntArgbPreInstance(),
+                                                     chunk.asIntBuffer(), width);
+                    chunk.limit(count * width * 4);
+                    writeFully(channel, chunk);
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            synchronized (this) {
+                getEntries().add(name);
+                evictOverLimit();
+            }
+        } catch (IOException e) {
+            LOG.warn("Problem writing pixels " + file + ": " + e.getMessage());
+            if (tmp != null) {
+                deleteQuietly(tmp);
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Deletes images viewed longest ago. Images still mapped stay readable until they are unmapped.
+     */
+    private synchronized void evictOverLimit() {
+        Iterator<String> eldest = getEntries().iterator();
+        while (entries.size() > maxImages && eldest.hasNext()) {
+            String name = eldest.next();
+            eldest.remove();
+            delete(folder.resolve(name));
+        }
+    }
+
+    private synchronized void remove(String name) {
+        getEntries().remove(name);
+        delete(folder.resolve(name));
+    }
+
+    /**
+     * Deletes file of an entry, or remembers it to be deleted later if it is still mapped.
+     */
+    private synchronized void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+            undeleted.remove(file);
+        } catch (IOException e) {
+            if (undeleted.add(file)) {
+                LOG.debug("Pixels " + file + " still in use, deleting them later: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Deletes files that could not be deleted before, mappings are gone once their images were collected.
+     */
+    private synchronized void retryDeletes() {
+        new ArrayList<>(undeleted).forEach(this::delete);
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOG.debug("Problem deleting pixels " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Modification time of files is their last view, so LRU order survives restarts.
+     */
+    private static void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            LOG.debug("Problem touching pixels " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads images stored on first use.
+     */
+    private synchronized Set<String> getEntries() {
+        if (entries == null) {
+            entries = new LinkedHashSet<>();
+            List<Path> files = new ArrayList<>();
+            if (Files.isDirectory(folder)) {
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+                    // temp files are left over from writes not finished
+                    stream.forEach(file -> {
+                        if (file.getFileName().toString().endsWith(".tmp")) {
+                            deleteQuietly(file);
+                        } else {
+                            files.add(file);
+                        }
+                    });
+                } catch (IOException e) {
+                    LOG.warn("Problem reading pixel cache " + folder + ": " + e.getMessage());
+                }
+            }
+            files.sort(Comparator.comparingLong(PixelCache::lastModified));
+            files.forEach(file -> entries.add(file.getFileName().toString()));
+            evictOverLimit();
+        }
+        return entries;
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
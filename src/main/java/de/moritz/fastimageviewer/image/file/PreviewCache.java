@@ -0,0 +1,316 @@
+package de.moritz.fastimageviewer.image.file;
+
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import de.moritz.fastimageviewer.main.DiModule.CacheDir;
+import de.moritz.fastimageviewer.main.DiModule.PreviewCacheBudget;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Stores images scaled to viewport size on disk, so images of a folder visited before are read at disk speed instead
+ * of being decoded in full resolution again. Entries are keyed by path, file size, modification time and viewport
+ * size, so a changed file or viewport simply misses. Least recently used entries are deleted if cache grows over its
+ * budget.
+ */
+@Singleton
+public class PreviewCache {
+
+    private static final float JPEG_QUALITY = 0.9f;
+    /**
+     * previews waiting to be written at most, further previews are not stored while writer lags behind
+     */
+    private static final int MAX_QUEUED_PREVIEWS = 4;
+    private static final Logger LOG = LoggerFactory.getLogger(PreviewCache.class);
+
+    private final Path folder;
+    private final long budget;
+    /**
+     * writes previews and keeps them off decode threads
+     */
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "preview-cache");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * previews handed to writer and not written yet, each holds a decoded image on heap
+     */
+    private final AtomicInteger queuedPreviews = new AtomicInteger();
+    /**
+     * file name to size in bytes, in order of last access, null until folder was read
+     */
+    private LinkedHashMap<String, Long> entries;
+    private long size = 0;
+
+    @Inject
+    private PreviewCache(@CacheDir Path cacheDir, @PreviewCacheBudget Long budget) {
+        checkArgument(budget >= 0);
+        this.folder = cacheDir.resolve("previews");
+        this.budget = budget;
+    }
+
+    /**
+     * @param path      image file
+     * @param width     viewport width the preview was made for
+     * @param height    viewport height the preview was made for
+     * @param cancelled stops reading preview if true
+     * @return stored preview, encoded, or null if there is none for current version of file
+     */
+    public byte[] get(Path path, double width, double height, BooleanSupplier cancelled) {
+        if (budget == 0) {
+            return null;
+        }
+        String name = getName(path, width, height);
+        if (name == null || !isKnown(name)) {
+            return null;
+        }
+        Path file = folder.resolve(name);
+        try {
+            byte[] preview = EncodedBuffer.readFile(file, cancelled);
+            writer.execute(() -> touch(file));
+            return preview;
+        } catch (IOException e) {
+            LOG.debug("Problem reading preview of " + path + ": " + e.getMessage());
+        }
+        if (!cancelled.getAsBoolean()) {
+            writer.execute(() -> delete(name));
+        }
+        return null;
+    }
+
+    /**
+     * @param path   image file
+     * @param width  viewport width the preview was made for
+     * @param height viewport height the preview was made for
+     * @return true if there is a preview for current version of file, it is not read
+     */
+    public boolean contains(Path path, double width, double height) {
+        if (budget == 0) {
+            return false;
+        }
+        String name = getName(path, width, height);
+        return name != null && isCached(name);
+    }
+
+    /**
+     * Stores preview in background. Preview is dropped if too many previews wait to be written already.
+     *
+     * @param path    image file
+     * @param width   viewport width the preview was made for
+     * @param height  viewport height the preview was made for
+     * @param preview image scaled to viewport size
+     */
+    public void put(Path path, double width, double height, Image preview) {
+        if (budget == 0 || preview.isError()) {
+            return;
+        }
+        if (queuedPreviews.incrementAndGet() > MAX_QUEUED_PREVIEWS) {
+            queuedPreviews.decrementAndGet();
+            LOG.debug("Preview writer lags behind, not storing preview of " + path);
+            return;
+        }
+        String name = getName(path, width, height);
+        if (name == null) {
+            queuedPreviews.decrementAndGet();
+            return;
+        }
+        writer.execute(() -> {
+            try {
+                write(name, preview);
+            } finally {
+                queuedPreviews.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * @return name of cache file or null if file can't be read
+     */
+    private static String getName(Path path, double width, double height) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            String key = path.toAbsolutePath() + "|" + attributes.size() + "|" + attributes.lastModifiedTime().toMillis()
+                         + "|" + Math.round(width) + "x" + Math.round(height);
+            return Hashing.sha256().hashString(key, StandardCharsets.UTF_8).toString();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private synchronized boolean isCached(String name) {
+        // keeps LRU order
+        return getEntries().containsKey(name);
+    }
+
+    private synchronized boolean isKnown(String name) {
+        // access moves entry to end of LRU order
+        return getEntries().get(name) != null;
+    }
+
+    private void write(String name, Image preview) {
+        if (isKnown(name)) {
+            return;
+        }
+        Path file = folder.resolve(name);
+        try {
+            Files.createDirectories(folder);
+            Path tmp = Files.createTempFile(folder, "preview", ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                encode(preview, out);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            long bytes = Files.size(file);
+            synchronized (this) {
+                Long old = getEntries().put(name, bytes);
+                size += bytes - (old == null ? 0 : old);
+                evictOverBudget();
+            }
+        } catch (IOException e) {
+            LOG.warn("Problem writing preview " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes image as jpeg, or as png if it has transparency.
+     */
+    private static void encode(Image image, OutputStream out) throws IOException {
+        PixelReader reader = image.getPixelReader();
+        int width = (int) image.getWidth();
+        int height = (int) image.getHeight();
+        // decoders deliver opaque images as rgb bytes, anything else might be transparent
+        boolean alpha = reader.getPixelFormat().getType() != PixelFormat.Type.BYTE_RGB;
+        BufferedImage buffered = new BufferedImage(width, height,
+                                                   alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        int[] pixels = new int[width * height];
+        reader.getPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), pixels, 0, width);
+        buffered.setRGB(0, 0, width, height, pixels, 0, width);
+        if (alpha) {
+            ImageIO.write(buffered, "png", out);
+            return;
+        }
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(buffered, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Deletes least recently used previews until cache fits into budget.
+     */
+    private synchronized void evictOverBudget() {
+        Iterator<Map.Entry<String, Long>> eldest = getEntries().entrySet().iterator();
+        while (size > budget && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            eldest.remove();
+            size -= entry.getValue();
+            deleteQuietly(folder.resolve(entry.getKey()));
+        }
+    }
+
+    private synchronized void delete(String name) {
+        Long bytes = getEntries().remove(name);
+        if (bytes != null) {
+            size -= bytes;
+        }
+        deleteQuietly(folder.resolve(name));
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOG.debug("Problem deleting preview " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Modification time of preview files is their last access, so LRU order survives restarts.
+     */
+    private static void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            LOG.debug("Problem touching preview " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads previews stored on first use.
+     */
+    private synchronized Map<String, Long> getEntries() {
+        if (entries == null) {
+            entries = new LinkedHashMap<>(16, 0.75f, true);
+            List<Path> files = new ArrayList<>();
+            if (Files.isDirectory(folder)) {
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+                    // temp files are left over from writes not finished
+                    stream.forEach(file -> {
+                        if (file.getFileName().toString().endsWith(".tmp")) {
+                            deleteQuietly(file);
+                        } else {
+                            files.add(file);
+                        }
+                    });
+                } catch (IOException e) {
+                    LOG.warn("Problem reading preview cache " + folder + ": " + e.getMessage());
+                }
+            }
+            Map<Path, BasicFileAttributes> attributes = new LinkedHashMap<>();
+            for (Path file : files) {
+                try {
+                    attributes.put(file, Files.readAttributes(file, BasicFileAttributes.class));
+                } catch (IOException e) {
+                    LOG.debug("Problem reading preview " + file + ": " + e.getMessage());
+                }
+            }
+            attributes.entrySet().stream()
+                      .sorted(Comparator.comparing(entry -> entry.getValue().lastModifiedTime()))
+                      .forEach(entry -> {
+                          entries.put(entry.getKey().getFileName().toString(), entry.getValue().size());
+                          size += entry.getValue().size();
+                      });
+            LOG.debug("Preview cache holds " + entries.size() + " previews, " + size / (1024 * 1024) + "MB.");
+            evictOverBudget();
+        }
+        return entries;
+    }
+}
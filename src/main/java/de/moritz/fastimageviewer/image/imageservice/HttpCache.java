@@ -0,0 +1,343 @@
+package de.moritz.fastimageviewer.image.imageservice;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import de.moritz.fastimageviewer.main.DiModule.CacheDir;
+import de.moritz.fastimageviewer.main.DiModule.HttpCacheBudget;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Stores responses of image service on disk, so images seen in an earlier session are not downloaded again. Entries
+ * are used without asking the service as long as Cache-Control or Expires says they are fresh, afterwards they are
+ * revalidated with their ETag or Last-Modified date. Responses with neither are not stored. Least recently used
+ * entries are deleted if cache grows over its budget.
+ */
+@Singleton
+public class HttpCache {
+
+    /**
+     * first int of entry files, changed if format changes
+     */
+    private static final int VERSION = 1;
+    private static final Logger LOG = LoggerFactory.getLogger(HttpCache.class);
+
+    private final Path folder;
+    private final long budget;
+    /**
+     * file name to size in bytes, in order of last access, null until folder was read
+     */
+    private LinkedHashMap<String, Long> entries;
+    private long size = 0;
+
+    @Inject
+    private HttpCache(@CacheDir Path cacheDir, @HttpCacheBudget Long budget) {
+        checkArgument(budget >= 0);
+        this.folder = cacheDir.resolve("http");
+        this.budget = budget;
+    }
+
+    /**
+     * @param url requested url
+     * @return stored response or null if there is none
+     */
+    public Entry get(String url) {
+        if (budget == 0) {
+            return null;
+        }
+        String name = getName(url);
+        if (!isKnown(name)) {
+            return null;
+        }
+        Path file = folder.resolve(name);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != VERSION) {
+                throw new IOException("unknown format");
+            }
+            String contentType = in.readUTF();
+            String eTag = in.readUTF();
+            String lastModified = in.readUTF();
+            long freshUntil = in.readLong();
+            byte[] content = new byte[in.readInt()];
+            in.readFully(content);
+            touch(file);
+            return new Entry(contentType, emptyToNull(eTag), emptyToNull(lastModified), freshUntil, content);
+        } catch (IOException e) {
+            LOG.debug("Problem reading cached response of " + url + ": " + e.getMessage());
+            delete(name);
+            return null;
+        }
+    }
+
+    /**
+     * Stores response if it can be used again.
+     *
+     * @param url     requested url
+     * @param headers response headers
+     * @param content response body
+     */
+    public void put(String url, HttpHeaders headers, byte[] content) {
+        if (budget == 0 || isNoStore(headers)) {
+            return;
+        }
+        Entry entry = new Entry(headers.getContentType(), headers.getETag(), headers.getLastModified(),
+                                getFreshUntil(headers), content);
+        if (entry.eTag != null || entry.lastModified != null || entry.isFresh()) {
+            write(getName(url), entry);
+        }
+    }
+
+    /**
+     * Stores that service confirmed entry is still valid (304), with freshness and validators sent along.
+     *
+     * @param url     requested url
+     * @param entry   entry revalidated
+     * @param headers headers of 304 response
+     * @return entry updated with headers
+     */
+    public Entry revalidated(String url, Entry entry, HttpHeaders headers) {
+        Entry updated = new Entry(entry.contentType,
+                                  headers.getETag() != null ? headers.getETag() : entry.eTag,
+                                  headers.getLastModified() != null ? headers.getLastModified() : entry.lastModified,
+                                  getFreshUntil(headers), entry.content);
+        if (budget > 0 && !isNoStore(headers)) {
+            write(getName(url), updated);
+        }
+        return updated;
+    }
+
+    private static String getName(String url) {
+        return Hashing.sha256().hashString(url, StandardCharsets.UTF_8).toString();
+    }
+
+    private static boolean isNoStore(HttpHeaders headers) {
+        return getDirectives(headers).contains("no-store");
+    }
+
+    /**
+     * @return time until that response can be used without revalidation, 0 if it has to be revalidated every time
+     */
+    private static long getFreshUntil(HttpHeaders headers) {
+        long now = System.currentTimeMillis();
+        List<String> directives = getDirectives(headers);
+        if (directives.contains("no-cache")) {
+            return 0;
+        }
+        for (String directive : directives) {
+            if (directive.startsWith("max-age=")) {
+                try {
+                    return now + 1000 * Long.parseLong(directive.substring("max-age=".length()));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        if (headers.getExpires() != null) {
+            try {
+                return ZonedDateTime.parse(headers.getExpires(), DateTimeFormatter.RFC_1123_DATE_TIME)
+                                    .toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                // invalid dates mean already expired
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    private static List<String> getDirectives(HttpHeaders headers) {
+        List<String> directives = new ArrayList<>();
+        if (headers.getCacheControl() != null) {
+            for (String directive : headers.getCacheControl().toLowerCase(Locale.ROOT).split(",")) {
+                directives.add(directive.trim());
+            }
+        }
+        return directives;
+    }
+
+    private synchronized boolean isKnown(String name) {
+        // access moves entry to end of LRU order
+        return getEntries().get(name) != null;
+    }
+
+    private void write(String name, Entry entry) {
+        Path file = folder.resolve(name);
+        try {
+            Files.createDirectories(folder);
+            Path tmp = Files.createTempFile(folder, "response", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(VERSION);
+                out.writeUTF(nullToEmpty(entry.contentType));
+                out.writeUTF(nullToEmpty(entry.eTag));
+                out.writeUTF(nullToEmpty(entry.lastModified));
+                out.writeLong(entry.freshUntil);
+                out.writeInt(entry.content.length);
+                out.write(entry.content);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            long bytes = Files.size(file);
+            synchronized (this) {
+                Long old = getEntries().put(name, bytes);
+                size += bytes - (old == null ? 0 : old);
+                evictOverBudget();
+            }
+        } catch (IOException e) {
+            LOG.warn("Problem writing response " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes least recently used entries until cache fits into budget.
+     */
+    private synchronized void evictOverBudget() {
+        Iterator<Map.Entry<String, Long>> eldest = getEntries().entrySet().iterator();
+        while (size > budget && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            eldest.remove();
+            size -= entry.getValue();
+            deleteQuietly(folder.resolve(entry.getKey()));
+        }
+    }
+
+    private synchronized void delete(String name) {
+        Long bytes = getEntries().remove(name);
+        if (bytes != null) {
+            size -= bytes;
+        }
+        deleteQuietly(folder.resolve(name));
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOG.debug("Problem deleting response " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Modification time of files is their last access, so LRU order survives restarts.
+     */
+    private static void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            LOG.debug("Problem touching response " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static String nullToEmpty(String string) {
+        return string == null ? "" : string;
+    }
+
+    private static String emptyToNull(String string) {
+        return string.isEmpty() ? null : string;
+    }
+
+    /**
+     * Reads entries stored on first use.
+     */
+    private synchronized Map<String, Long> getEntries() {
+        if (entries == null) {
+            entries = new LinkedHashMap<>(16, 0.75f, true);
+            Map<Path, BasicFileAttributes> attributes = new LinkedHashMap<>();
+            if (Files.isDirectory(folder)) {
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+                    for (Path file : stream) {
+                        // temp files are left over from writes not finished
+                        if (file.getFileName().toString().endsWith(".tmp")) {
+                            deleteQuietly(file);
+                        } else {
+                            attributes.put(file, Files.readAttributes(file, BasicFileAttributes.class));
+                        }
+                    }
+                } catch (IOException e) {
+                    LOG.warn("Problem reading http cache " + folder + ": " + e.getMessage());
+                }
+            }
+            attributes.entrySet().stream()
+                      .sorted(Comparator.comparing(entry -> entry.getValue().lastModifiedTime()))
+                      .forEach(entry -> {
+                          entries.put(entry.getKey().getFileName().toString(), entry.getValue().size());
+                          size += entry.getValue().size();
+                      });
+            LOG.debug("Http cache holds " + entries.size() + " responses, " + size / (1024 * 1024) + "MB.");
+            evictOverBudget();
+        }
+        return entries;
+    }
+
+    /**
+     * Stored response.
+     */
+    public static class Entry {
+        private final String contentType;
+        private final String eTag;
+        private final String lastModified;
+        private final long freshUntil;
+        private final byte[] content;
+
+        private Entry(String contentType, String eTag, String lastModified, long freshUntil, byte[] content) {
+            this.contentType = contentType;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.freshUntil = freshUntil;
+            this.content = content;
+        }
+
+        /**
+         * @return true if entry can be used without asking service
+         */
+        public boolean isFresh() {
+            return System.currentTimeMillis() < freshUntil;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * @return entity tag to send as If-None-Match or null
+         */
+        public String getETag() {
+            return eTag;
+        }
+
+        /**
+         * @return date to send as If-Modified-Since or null
+         */
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+    }
+}
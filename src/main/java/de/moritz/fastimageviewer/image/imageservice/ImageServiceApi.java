@@ -2,6 +2,9 @@ package de.moritz.fastimageviewer.image.imageservice;
 
 import javafx.scene.image.Image;
 
+import java.io.IOException;
+import java.util.List;
+
 /**
  * Specifies the part of imageservice rest api used here.
  * @author moritz
@@ -16,6 +19,42 @@ public interface ImageServiceApi {
      */
     Image getImage(ImageServiceImageId id);
 
+    /**
+     *
+     * @param id id of image
+     * @return the image as sent by service, not decoded, or null if no image is returned by service
+     * @throws IOException if service can't be reached, doesn't answer in time or fails - even after retries
+     */
+    byte[] getImageBytes(ImageServiceImageId id) throws IOException;
+
+    /**
+     * Asks service for image scaled down to fit into given size. A service not scaling images sends the original.
+     *
+     * @param id id of image
+     * @param width width to fit into in pixels
+     * @param height height to fit into in pixels
+     * @return the image as sent by service, not decoded, or null if no image is returned by service
+     * @throws IOException if service can't be reached, doesn't answer in time or fails - even after retries
+     */
+    byte[] getImageBytes(ImageServiceImageId id, int width, int height) throws IOException;
+
+    /**
+     * Fetches several images along with their infos in one response. Service streams a sequence of parts, each
+     * made of index (int), info length (int) and info in UTF-8, image length (int) and image - big endian, a length
+     * of -1 if there is no info or image. Response has to be of type application/octet-stream. Parts are handed to
+     * consumer as soon as they arrived. Images fresh in http cache are handed over first, without info, and not
+     * requested.
+     *
+     * @param ids ids of images, all with same filter
+     * @param width width to fit images into in pixels, 0 for originals
+     * @param height height to fit images into in pixels, 0 for originals
+     * @param consumer gets parts in order they arrive, ids not answered by service are left out
+     * @return false if service has no batch endpoint, single requests have to be used then
+     * @throws IOException if service can't be reached, doesn't answer in time or fails
+     */
+    boolean getImages(List<ImageServiceImageId> ids, int width, int height, PartConsumer consumer)
+            throws IOException;
+
     /**
      *
      * @param id id of image
@@ -35,4 +74,16 @@ public interface ImageServiceApi {
      * @return max index for this filter (means there are maxIndex+1 images matching the filter)
      */
     int maxIndexForFilter(String filter);
+
+    /**
+     * Receives parts of a batch response.
+     */
+    interface PartConsumer {
+        /**
+         * @param id id of image
+         * @param image image as sent by service or null if there is none
+         * @param info info of image or null if there is none
+         */
+        void accept(ImageServiceImageId id, byte[] image, String info);
+    }
 }
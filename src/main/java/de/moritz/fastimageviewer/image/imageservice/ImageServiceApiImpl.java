@@ -1,24 +1,40 @@
 package de.moritz.fastimageviewer.image.imageservice;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpBackOffIOExceptionHandler;
+import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler;
+import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestFactory;
 import com.google.api.client.http.HttpResponse;
-import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.ExponentialBackOff;
 import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.CharStreams;
 import com.google.common.net.MediaType;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 
+import de.moritz.fastimageviewer.image.PixelSlabPool;
 import javafx.scene.image.Image;
 
 public class ImageServiceApiImpl implements ImageServiceApi {
@@ -27,16 +43,43 @@ public class ImageServiceApiImpl implements ImageServiceApi {
     private static final String INFO = "/info";
     private static final String INDEX_INFO_PATH = "/indexInfo";
     private static final String INDEX_FILTER_INFO = "/indexFilterInfo";
+    private static final String BATCH_PATH = "/batch";
+    private static final String INDEXES_PARAMETER = "indexes";
+    private static final String FILTER_PARAMETER = "filter";
+    private static final String WIDTH_PARAMETER = "width";
+    private static final String HEIGHT_PARAMETER = "height";
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    /**
+     * time to wait for response after connecting
+     */
+    private static final int READ_TIMEOUT_MS = 10000;
+    private static final int RETRIES = 3;
+    /**
+     * first wait before a retry, doubled with each retry and randomized by half of it, so clients don't retry in
+     * lockstep
+     */
+    private static final int FIRST_BACKOFF_MS = 250;
+    private static final int MAX_RETRY_TIME_MS = 10000;
+    private static final int STATUS_CODE_NOT_IMPLEMENTED = 501;
     private HttpRequestFactory requestFactory;
     private final GenericUrl baseUrl;
     private String user;
     private String pass;
+    private final PixelSlabPool slabPool;
+    private final HttpCache httpCache;
+    /**
+     * false once service answered that it has no batch endpoint
+     */
+    private volatile boolean batchSupported = true;
 
     private Logger LOG = LoggerFactory.getLogger(ImageServiceApiImpl.class);
 
     @Inject
-    private ImageServiceApiImpl(@Assisted String serviceUrl) {
-        requestFactory = new NetHttpTransport().createRequestFactory();
+    private ImageServiceApiImpl(@Assisted String serviceUrl, PixelSlabPool slabPool, PooledHttpTransport transport,
+                                HttpCache httpCache) {
+        this.slabPool = slabPool;
+        this.httpCache = httpCache;
+        requestFactory = transport.createRequestFactory();
         try {
             baseUrl = new GenericUrl(new URL(serviceUrl));
         } catch (MalformedURLException e) {
@@ -56,6 +99,125 @@ public class ImageServiceApiImpl implements ImageServiceApi {
         return getImageFromResource(getPathFromId(id));
     }
 
+    @Override
+    public byte[] getImageBytes(ImageServiceImageId id) throws IOException {
+        GenericUrl url = new GenericUrl(baseUrl.toURL());
+        url.appendRawPath(getPathFromId(id));
+        return getBytesFromUrl(url);
+    }
+
+    @Override
+    public byte[] getImageBytes(ImageServiceImageId id, int width, int height) throws IOException {
+        return getBytesFromUrl(getImageUrl(id, width, height));
+    }
+
+    /**
+     * @return url of image scaled to fit size, of image as it is if size is not known
+     */
+    private GenericUrl getImageUrl(ImageServiceImageId id, int width, int height) {
+        GenericUrl url = new GenericUrl(baseUrl.toURL());
+        url.appendRawPath(getPathFromId(id));
+        if (width > 0 && height > 0) {
+            url.set(WIDTH_PARAMETER, width);
+            url.set(HEIGHT_PARAMETER, height);
+        }
+        return url;
+    }
+
+    @Override
+    public boolean getImages(List<ImageServiceImageId> ids, int width, int height, PartConsumer consumer)
+            throws IOException {
+        if (!batchSupported) {
+            return false;
+        }
+        String filter = ids.isEmpty() ? null : ids.get(0).getFilter();
+        // images fresh in http cache are not requested again, their infos are not cached
+        List<ImageServiceImageId> missing = new ArrayList<>();
+        for (ImageServiceImageId id : ids) {
+            HttpCache.Entry cached = httpCache.get(getImageUrl(id, width, height).build());
+            if (cached != null && cached.isFresh()) {
+                consumer.accept(id, cached.getContent(), null);
+            } else {
+                missing.add(id);
+            }
+        }
+        if (missing.isEmpty()) {
+            LOG.debug("All " + ids.size() + " images of batch are fresh in http cache.");
+            return true;
+        }
+        GenericUrl url = new GenericUrl(baseUrl.toURL());
+        url.appendRawPath(BATCH_PATH);
+        url.set(INDEXES_PARAMETER,
+                missing.stream().map(id -> String.valueOf(id.getIndex())).collect(Collectors.joining(",")));
+        if (!Strings.isNullOrEmpty(filter)) {
+            url.set(FILTER_PARAMETER, cleatFirstSlash(filter));
+        }
+        if (width > 0 && height > 0) {
+            url.set(WIDTH_PARAMETER, width);
+            url.set(HEIGHT_PARAMETER, height);
+        }
+        LOG.debug("Loading " + missing.size() + " images from " + url);
+        HttpResponse response;
+        try {
+            response = buildRequest(url).execute();
+        } catch (HttpResponseException e) {
+            if (e.getStatusCode() == HttpStatusCodes.STATUS_CODE_NOT_FOUND
+                || e.getStatusCode() == HttpStatusCodes.STATUS_CODE_METHOD_NOT_ALLOWED
+                || e.getStatusCode() == STATUS_CODE_NOT_IMPLEMENTED) {
+                LOG.debug("Service has no batch endpoint (" + e.getStatusCode() + "), using single requests.");
+                batchSupported = false;
+                return false;
+            }
+            throw e;
+        }
+        try {
+            if (response.getContentType() == null
+                || !MediaType.parse(response.getContentType()).is(MediaType.OCTET_STREAM)) {
+                // e.g. a page served for every path
+                LOG.debug("Service answered batch with " + response.getContentType() + ", using single requests.");
+                batchSupported = false;
+                return false;
+            }
+            // parts are stored like responses to single requests, validators of batch don't apply to them
+            HttpHeaders partHeaders = response.getHeaders().clone();
+            partHeaders.setETag(null);
+            partHeaders.setContentType(null);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(response.getContent()));
+            for (int part = 0; part < missing.size(); part++) {
+                int index;
+                try {
+                    index = in.readInt();
+                } catch (EOFException e) {
+                    // service left out the rest
+                    break;
+                }
+                byte[] info = readPart(in);
+                byte[] image = readPart(in);
+                ImageServiceImageId id = new ImageServiceImageId(index, filter);
+                if (image != null) {
+                    httpCache.put(getImageUrl(id, width, height).build(), partHeaders, image);
+                }
+                consumer.accept(id, image, info == null ? null : new String(info, StandardCharsets.UTF_8));
+            }
+        } finally {
+            response.disconnect();
+        }
+        return true;
+    }
+
+    /**
+     * @return bytes of part preceded by their length, null if length is -1
+     */
+    private static byte[] readPart(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] part = new byte[length];
+        in.readFully(part);
+        return part;
+    }
+
     @Override
     public String getImageInfo(ImageServiceImageId id) {
         GenericUrl url = new GenericUrl(baseUrl.toURL());
@@ -80,16 +242,13 @@ public class ImageServiceApiImpl implements ImageServiceApi {
     }
 
     private Image getImageFromResource(String path) {
-        GenericUrl url = new GenericUrl(baseUrl.toURL());
-        url.appendRawPath(path);
         Image image = null;
         try {
-            LOG.debug("Loading image from " + url);
-            HttpRequest request = requestFactory.buildGetRequest(url);
-            setAuth(request);
-            HttpResponse response = request.execute();
-            if (MediaType.parse(response.getContentType()).is(MediaType.ANY_IMAGE_TYPE)) {
-                image = new Image(response.getContent());
+            GenericUrl url = new GenericUrl(baseUrl.toURL());
+            url.appendRawPath(path);
+            byte[] bytes = getBytesFromUrl(url);
+            if (bytes != null) {
+                image = slabPool.wrap(new Image(new ByteArrayInputStream(bytes)));
             }
         } catch (IOException e) {
             LOG.debug("Can't receive image: " + e.getMessage());
@@ -97,6 +256,50 @@ public class ImageServiceApiImpl implements ImageServiceApi {
         return image;
     }
 
+    /**
+     * Loads image from http cache if still fresh, else from service - asking only for changes if image is cached.
+     *
+     * @return image as sent by service or null if service has no image at url
+     */
+    private byte[] getBytesFromUrl(GenericUrl url) throws IOException {
+        String key = url.build();
+        HttpCache.Entry cached = httpCache.get(key);
+        if (cached != null && cached.isFresh()) {
+            LOG.debug("Image " + url + " is fresh in http cache.");
+            return cached.getContent();
+        }
+        byte[] bytes = null;
+        try {
+            LOG.debug("Loading image bytes from " + url);
+            HttpRequest request = buildRequest(url);
+            if (cached != null) {
+                request.getHeaders().setIfNoneMatch(cached.getETag());
+                request.getHeaders().setIfModifiedSince(cached.getLastModified());
+            }
+            HttpResponse response = request.execute();
+            try {
+                if (MediaType.parse(response.getContentType()).is(MediaType.ANY_IMAGE_TYPE)) {
+                    bytes = ByteStreams.toByteArray(response.getContent());
+                    httpCache.put(key, response.getHeaders(), bytes);
+                }
+            } finally {
+                // gives connection back to pool
+                response.disconnect();
+            }
+        } catch (HttpResponseException e) {
+            if (e.getStatusCode() == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED && cached != null) {
+                LOG.debug("Image " + url + " not modified, using http cache.");
+                return httpCache.revalidated(key, cached, e.getHeaders()).getContent();
+            }
+            if (e.getStatusCode() >= HttpStatusCodes.STATUS_CODE_SERVER_ERROR) {
+                throw e;
+            }
+            // service answered, there is no such image
+            LOG.debug("No image at " + url + ": " + e.getStatusCode());
+        }
+        return bytes;
+    }
+
     private String getPathFromId(ImageServiceImageId id) {
         return  getPathToInfo( id, INDEX_FILTER_PATH, INDEX_PATH );
     }
@@ -120,10 +323,7 @@ public class ImageServiceApiImpl implements ImageServiceApi {
         int result = 0;
         LOG.debug("Trying to retrieve int from: " + url);
         try {
-            HttpRequest request = requestFactory.buildGetRequest(url);
-            setAuth(request);
-            HttpResponse response = request.execute();
-            String string = CharStreams.toString(new InputStreamReader(response.getContent()));
+            String string = readString(buildRequest(url));
             try {
                 result = Integer.parseInt(string);
                 LOG.debug("int retieved: " + result);
@@ -140,16 +340,45 @@ public class ImageServiceApiImpl implements ImageServiceApi {
         LOG.debug("Trying to retrieve int from: " + url);
         String string = null;
         try {
-            HttpRequest request = requestFactory.buildGetRequest(url);
-            setAuth(request);
-            HttpResponse response = request.execute();
-            string = CharStreams.toString(new InputStreamReader(response.getContent()));
+            string = readString(buildRequest(url));
         } catch (IOException e) {
             LOG.debug("Problem retrieving int: ", e);
         }
         return string;
     }
 
+    private static String readString(HttpRequest request) throws IOException {
+        HttpResponse response = request.execute();
+        try {
+            return CharStreams.toString(new InputStreamReader(response.getContent(), response.getContentCharset()));
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    /**
+     * @return get request with credentials, timeouts and retries with exponential backoff on io problems and server
+     *         errors
+     */
+    private HttpRequest buildRequest(GenericUrl url) throws IOException {
+        HttpRequest request = requestFactory.buildGetRequest(url);
+        setAuth(request);
+        request.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        request.setReadTimeout(READ_TIMEOUT_MS);
+        request.setNumberOfRetries(RETRIES);
+        request.setIOExceptionHandler(new HttpBackOffIOExceptionHandler(createBackOff()));
+        request.setUnsuccessfulResponseHandler(new HttpBackOffUnsuccessfulResponseHandler(createBackOff()));
+        return request;
+    }
+
+    private static BackOff createBackOff() {
+        return new ExponentialBackOff.Builder().setInitialIntervalMillis(FIRST_BACKOFF_MS)
+                                               .setRandomizationFactor(0.5)
+                                               .setMultiplier(2)
+                                               .setMaxElapsedTimeMillis(MAX_RETRY_TIME_MS)
+                                               .build();
+    }
+
     private void setAuth(HttpRequest request) {
         if (user != null) {
             request.getHeaders().setBasicAuthentication(user, pass);
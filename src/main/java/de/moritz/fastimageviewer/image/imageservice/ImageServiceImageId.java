@@ -1,5 +1,7 @@
 package de.moritz.fastimageviewer.image.imageservice;
 
+import java.util.Objects;
+
 import javax.annotation.Nullable;
 
 /**
@@ -30,4 +32,21 @@ public class ImageServiceImageId {
         return filter;
     }
 
+    @Override
+    public boolean equals( Object o ) {
+        if( this == o ) {
+            return true;
+        }
+        if( !(o instanceof ImageServiceImageId) ) {
+            return false;
+        }
+        ImageServiceImageId other = (ImageServiceImageId) o;
+        return index == other.index && Objects.equals( filter, other.filter );
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash( index, filter );
+    }
+
 }
@@ -1,83 +1,239 @@
 package de.moritz.fastimageviewer.image.imageservice;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.eventbus.EventBus;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
-import de.moritz.fastimageviewer.image.ImageProvider;
+import de.moritz.fastimageviewer.image.AsyncImageProvider;
+import de.moritz.fastimageviewer.image.ImageSizes;
+import de.moritz.fastimageviewer.image.PixelSlabPool;
 import de.moritz.fastimageviewer.main.BufferState;
+import de.moritz.fastimageviewer.main.DiModule.BufferBudget;
+import de.moritz.fastimageviewer.main.DiModule.DecodePool;
+import de.moritz.fastimageviewer.main.DiModule.EncodedBudget;
+import de.moritz.fastimageviewer.main.DiModule.FullImagePool;
+import de.moritz.fastimageviewer.main.DiModule.ServiceAheadSeconds;
+import de.moritz.fastimageviewer.main.DiModule.ServiceBackward;
+import de.moritz.fastimageviewer.main.DiModule.ServiceForward;
+import de.moritz.fastimageviewer.main.DiModule.ServicePool;
+import de.moritz.fastimageviewer.main.DiModule.ServiceRequests;
 import javafx.scene.image.Image;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by moritz on 25.02.2016.
  *
- * Uses my ImageService to get images.
+ * Uses my ImageService to get images. Images are addressed by their position in the order they are shown, so the
+ * service is buffered like a folder: decoded images in a window around the current position, sized by buffer budget,
+ * and images as sent by service further out in both directions.
  *
  */
-public class ImageServiceImageProvider implements ImageProvider {
-
-    private boolean waitingOnFirst;
+public class ImageServiceImageProvider implements AsyncImageProvider {
 
     public interface Inst {
         ImageServiceImageProvider get(@Assisted String serviceUrl);
     }
 
     private static final Logger LOG = LoggerFactory.getLogger(ImageServiceImageProvider.class);
-    private static final int BUFFER_SIZE = 10;
-    private static final int HISTORY_BUFFER_SIZE = 5;
-
-    private Random random = new SecureRandom();
-    private volatile ConcurrentLinkedDeque<ImageWithId> buffer = new ConcurrentLinkedDeque<>();
-    private volatile List<ImageWithId> historyBuffer = new ArrayList<>();
-    private volatile ImageServiceImageId currentImage;
-    private int lastIndexLoaded = 0;
-
-    private volatile boolean noImageFound = false;
+    /**
+     * images fetched ahead at most, fetched but not decoded yet beyond decode window
+     */
+    private static final int ENCODED_FORWARD = 50;
+    private static final int ENCODED_BACKWARD = 20;
+    /**
+     * size assumed for decoded images as long as nothing was decoded (12MP)
+     */
+    private static final long DEFAULT_IMAGE_BYTES = 4000L * 3000 * 4;
+    /**
+     * share of budget used for forward buffer
+     */
+    private static final double FORWARD_SHARE = 0.75;
+    /**
+     * images decoded at once
+     */
+    private static final int MAX_DECODES = 2;
+    /**
+     * image requests taking longer than this share of requests before are sent a second time
+     */
+    private static final double HEDGE_PERCENTILE = 0.95;
+    /**
+     * time after that an image is given up, requests still running for it are aborted
+     */
+    private static final long FETCH_DEADLINE_MS = 30000;
+    /**
+     * fetches failing in a row at a position until service is taken to have no image there
+     */
+    private static final int MAX_FAILURES = 3;
+    private static final int INFO_CACHE_SIZE = 200;
+    /**
+     * images requested at most in one batch
+     */
+    private static final int BATCH_SIZE = 10;
+    /**
+     * viewport size changes less than this share of it don't reload images
+     */
+    private static final double VIEWPORT_TOLERANCE = 0.1;
+    /**
+     * longer looks at an image count as this long, so a break doesn't shrink buffer for many images after
+     */
+    private static final double MAX_DWELL_SECONDS = 60;
 
+    private final long seed = new SecureRandom().nextLong();
+    private Shuffle shuffle;
+    /**
+     * decoded images around current position, by position
+     */
+    private final Map<Long, ImageWithId> decoded = new HashMap<>();
+    private long decodedBytes = 0;
+    private final long budget;
+    private final int startForward;
+    private final int maxBackward;
+    private final int aheadSeconds;
+    private int forward;
+    private int backward;
+    /**
+     * images fetched ahead, decode window plus images passed while they are fetched
+     */
+    private int fetchForward = ENCODED_FORWARD;
+    private double averageImageBytes = DEFAULT_IMAGE_BYTES;
+    /**
+     * averages measured to size buffer, -1 while not measured
+     */
+    private double dwellSeconds = -1;
+    private double decodeSeconds = -1;
+    private double averageEncodedBytes = -1;
+    /**
+     * bytes per second received by one request
+     */
+    private double throughput = -1;
+    /**
+     * time current image was shown, -1 while it is not shown yet
+     */
+    private long lastShown = -1;
+    /**
+     * outer tier of buffer: images as sent by service, by position
+     */
+    private final Map<Long, Encoded> encoded = new HashMap<>();
+    private long encodedBytes = 0;
+    private final long encodedBudget;
+    /**
+     * positions service has no image for
+     */
+    private final Set<Long> missing = new HashSet<>();
+    /**
+     * fetches failed in a row, by position
+     */
+    private final Map<Long, Integer> failures = new HashMap<>();
+    private final Map<Long, CompletableFuture<Encoded>> fetching = new HashMap<>();
+    private final Set<Long> decoding = new HashSet<>();
+    /**
+     * callers waiting for image at position
+     */
+    private final Map<Long, CompletableFuture<Image>> waiting = new HashMap<>();
+    private final int maxRequests;
+    /**
+     * requests in flight, a batch counts as one - requests of a previous generation count until they are done
+     */
+    private int requests = 0;
+    /**
+     * false once service turned out to have no batch endpoint
+     */
+    private boolean batches = true;
+    /**
+     * incremented when buffer is refilled, fetches and decodes started before are dropped
+     */
+    private int generation = 0;
+    private final ExecutorService servicePool;
+    private final ExecutorService decodePool;
+    private final Latencies latencies = new Latencies();
+    /**
+     * infos of images buffered and seen last
+     */
+    private final Cache<ImageServiceImageId, CompletableFuture<String>> infos =
+            CacheBuilder.newBuilder().maximumSize(INFO_CACHE_SIZE).build();
+    /**
+     * position of image shown or requested last, -1 before first image
+     */
+    private long currentPosition = -1;
+    private volatile ImageWithId currentImage;
+    private volatile Image lastImage;
+    /**
+     * size images are requested and decoded for, 0 while not known
+     */
+    private volatile double viewportWidth = 0;
+    private volatile double viewportHeight = 0;
+    private CompletableFuture<Image> fullImage;
+    private ImageServiceImageId fullImageId;
     /**
-     * Current position in history
+     * loads full resolution images, not shared with prefetching
      */
-    private int historyIndex = 0;
+    private final ExecutorService fullImagePool;
+
     private String filterPath;
-    private volatile CompletableFuture<Void> bufferTask;
     private EventBus eventBus;
 
     private int maxIndex;
     private ImageServiceApi imageService;
+    private final PixelSlabPool slabPool;
 
     private boolean sorted = false;
 
     @Inject
     private ImageServiceImageProvider(@Assisted String serviceUrl, EventBus eventBus,
-                                      ImageServiceApiFactory imageService) {
+                                      ImageServiceApiFactory imageService, PixelSlabPool slabPool,
+                                      @BufferBudget Long budget, @EncodedBudget Long encodedBudget,
+                                      @ServiceForward Integer startForward, @ServiceBackward Integer maxBackward,
+                                      @ServiceAheadSeconds Integer aheadSeconds,
+                                      @ServicePool ExecutorService servicePool,
+                                      @ServiceRequests Integer maxRequests,
+                                      @DecodePool ExecutorService decodePool,
+                                      @FullImagePool ExecutorService fullImagePool) {
         this.eventBus = eventBus;
+        this.fullImagePool = fullImagePool;
+        this.servicePool = servicePool;
+        this.maxRequests = maxRequests;
+        this.decodePool = decodePool;
+        this.budget = budget;
+        this.encodedBudget = encodedBudget;
+        this.startForward = startForward;
+        this.maxBackward = maxBackward;
+        this.aheadSeconds = aheadSeconds;
+        this.slabPool = slabPool;
         this.imageService = imageService.get(serviceUrl);
         LOG.debug("ImageService provider started with base url " + serviceUrl);
         maxIndex = this.imageService.maxIndex();
-        fillBufferAsync(false);
+        shuffle = new Shuffle(seed, Math.max(1, maxIndex + 1));
+        updateDepth();
+        fillBuffer();
     }
 
     @Override
     public Image getImage() {
-        noImageFound = false;
-        fillBufferAsync(false);
-        if(buffer.size() < 1 && !noImageFound){
-            waitingOnFirst = true;
-            return null;
-        }
-
-        ImageWithId poll = buffer.poll();
-        addToHistory(poll);
-        currentImage = poll.getId();
-        return poll.getImage();
+        return now(getImageAsync());
     }
 
     @Override
@@ -85,9 +241,82 @@ public class ImageServiceImageProvider implements ImageProvider {
         return getImage();
     }
 
+    @Override
+    public synchronized CompletableFuture<Image> getImageAsync() {
+        if (currentImage == null) {
+            // first image might be requested already
+            CompletableFuture<Image> first = waiting.get(currentPosition);
+            return first != null ? first : moveTo(currentPosition + 1);
+        }
+        return CompletableFuture.completedFuture(lastImage);
+    }
+
+    @Override
+    public CompletableFuture<Image> getImageAsync(int index) {
+        return getImageAsync();
+    }
+
+    @Override
+    public synchronized CompletableFuture<Image> nextAsync() {
+        return moveTo(currentPosition + 1);
+    }
+
+    @Override
+    public synchronized CompletableFuture<Image> prevAsync() {
+        return moveTo(currentPosition - 1);
+    }
+
+    @Override
+    public synchronized CompletableFuture<Image> skipAsync(int steps) {
+        if (steps == 0) {
+            return CompletableFuture.completedFuture(lastImage);
+        }
+        return moveTo(currentPosition + steps);
+    }
+
+    @Override
+    public synchronized CompletableFuture<Image> getFullImageAsync() {
+        ImageWithId current = currentImage;
+        if (current == null || viewportWidth <= 0) {
+            // images are not scaled
+            return CompletableFuture.completedFuture(lastImage);
+        }
+        if (!current.getId().equals(fullImageId) || fullImage == null) {
+            LOG.debug("Loading image " + current.getId().getIndex() + " in full resolution.");
+            ImageServiceImageId id = current.getId();
+            CompletableFuture<Image> full = new CompletableFuture<>();
+            // not on service pool, so a zoom does not wait behind prefetching
+            Future<?> request = fullImagePool.submit(() -> {
+                try {
+                    byte[] bytes = imageService.getImageBytes(id);
+                    full.complete(bytes == null ? current.getImage() : new Image(new ByteArrayInputStream(bytes)));
+                } catch (IOException | RuntimeException e) {
+                    LOG.debug("Problem loading full image " + id.getIndex() + ": " + e.getMessage());
+                    full.complete(current.getImage());
+                }
+            });
+            // releasing full image aborts its request
+            full.whenComplete((image, e) -> request.cancel(true));
+            fullImage = full;
+            fullImageId = id;
+        }
+        return fullImage;
+    }
+
+    @Override
+    public synchronized void releaseFullImage() {
+        if (fullImage != null) {
+            fullImage.cancel(false);
+        }
+        fullImage = null;
+        fullImageId = null;
+    }
+
     @Override
     public String getInfoForLast() {
-        return imageService.getImageInfo(currentImage);
+        ImageWithId current = currentImage;
+        // not taken from image, an info that failed is asked for again
+        return current == null ? null : getInfo(current.getId()).join();
     }
 
     @Override
@@ -97,24 +326,12 @@ public class ImageServiceImageProvider implements ImageProvider {
 
     @Override
     public Image next() {
-        return getImage();
+        return now(nextAsync());
     }
 
     @Override
     public Image prev() {
-        ImageWithId result = null;
-        if (--historyIndex >= 0) {
-            result = historyBuffer.get(historyIndex);
-        } else if (historyBuffer.size() > 0) {
-            LOG.debug("reached end of history.");
-            result = historyBuffer.get(0);
-        }
-        if (result != null) {
-            currentImage = result.getId();
-            return result.getImage();
-        } else {
-            return null;
-        }
+        return now(prevAsync());
     }
 
     @Override
@@ -127,85 +344,650 @@ public class ImageServiceImageProvider implements ImageProvider {
             maxIndex = imageService.maxIndexForFilter(path);
         }
         LOG.debug("path set to " + path);
-        fillBufferAsync(true);
+        shuffle = new Shuffle(seed, Math.max(1, maxIndex + 1));
+        refillBuffer();
     }
 
     @Override
     public void setSort(boolean sorted) {
         if (this.sorted != sorted) {
             this.sorted = sorted;
-            lastIndexLoaded = 0;
+            // images buffered are in order of other mode
+            refillBuffer();
         }
 
     }
 
-    private void addToHistory(ImageWithId image) {
-        historyBuffer.add(image);
-        if (historyBuffer.size() > HISTORY_BUFFER_SIZE) {
-            LOG.debug("removing first image from history buffer.");
-            historyBuffer.remove(0);
+    @Override
+    public void setViewportSize(double width, double height) {
+        boolean changed = Math.abs(width - viewportWidth) > viewportWidth * VIEWPORT_TOLERANCE
+                          || Math.abs(height - viewportHeight) > viewportHeight * VIEWPORT_TOLERANCE;
+        if (changed && width > 0 && height > 0) {
+            LOG.debug("Viewport size changed to " + width + "x" + height);
+            viewportWidth = width;
+            viewportHeight = height;
+            reloadBuffer();
         }
-        historyIndex = historyBuffer.size() - 1;
-        postBufferState();
     }
 
-    private void fillBuffer() {
-        LOG.debug("Filling buffer...");
-        while (buffer.size() < BUFFER_SIZE) {
-            ImageServiceImageId id = new ImageServiceImageId(getNextIndex(), filterPath);
-            Image image = imageService.getImage(id);
-            if (image != null) {
-                ImageWithId imageWithId = new ImageWithId(image, id);
-                if(waitingOnFirst){
-                    eventBus.post(imageWithId.getImage());
-                    addToHistory(imageWithId);
-                    currentImage = imageWithId.getId();
-                    waitingOnFirst = false;
-                    LOG.debug("Image sent directly to view");
-                } else {
-                    buffer.offer(imageWithId);
-                    LOG.debug("Added image to buffer, " + buffer.size() + " images buffered.");
-                    postBufferState();
+    @Override
+    public Image getFullImage() {
+        return getFullImageAsync().join();
+    }
+
+    /**
+     * @return image if already loaded, else null - image is posted on event bus once loaded
+     */
+    private Image now(CompletableFuture<Image> image) {
+        if (image.isDone()) {
+            return image.getNow(null);
+        }
+        image.thenAccept(loaded -> {
+            if (loaded != null) {
+                eventBus.post(loaded);
+            }
+        });
+        return null;
+    }
+
+    /**
+     * Makes image at position current one and centers buffer on it.
+     *
+     * @return completed with image at position once decoded, with null if service has no image there
+     */
+    private synchronized CompletableFuture<Image> moveTo(long position) {
+        if (position != currentPosition) {
+            if (currentPosition >= 0 && lastShown >= 0) {
+                // time waiting for image is not looked at, skipped images count as looked at for a share of time
+                double dwell = (System.nanoTime() - lastShown) / 1e9 / Math.abs(position - currentPosition);
+                dwellSeconds = smooth(dwellSeconds, Math.min(MAX_DWELL_SECONDS, dwell));
+                updateDepth();
+            }
+            lastShown = -1;
+        }
+        currentPosition = position;
+        CompletableFuture<Image> result;
+        ImageWithId buffered = decoded.get(position);
+        if (buffered != null) {
+            show(buffered);
+            result = CompletableFuture.completedFuture(buffered.getImage());
+        } else if (missing.contains(position)) {
+            result = CompletableFuture.completedFuture(null);
+        } else {
+            result = waiting.computeIfAbsent(position, p -> new CompletableFuture<>());
+        }
+        fillBuffer();
+        return result;
+    }
+
+    private void show(ImageWithId image) {
+        currentImage = image;
+        lastImage = image.getImage();
+        lastShown = System.nanoTime();
+    }
+
+    /**
+     * Keeps buffers filled: drops what left the window, then goes through positions nearest first and forward before
+     * backward - decodes fetched images inside of decode window and starts fetches while fewer than allowed requests
+     * are in flight. Called whenever something changed.
+     */
+    private synchronized void fillBuffer() {
+        long current = currentPosition;
+        // nothing requested yet, only images ahead are needed
+        boolean started = currentImage != null || waiting.containsKey(current);
+        long first = started ? current - ENCODED_BACKWARD : current + 1;
+        long last = current + fetchForward;
+        for (Long position : new ArrayList<>(decoded.keySet())) {
+            if (!isInDecodeWindow(position) && position != current) {
+                removeDecoded(position);
+            }
+        }
+        for (Long position : new ArrayList<>(encoded.keySet())) {
+            if (position < first || position > last) {
+                encodedBytes -= encoded.remove(position).bytes.length;
+            }
+        }
+        missing.removeIf(position -> position < first || position > last);
+        failures.keySet().removeIf(position -> position < first || position > last);
+        new HashSet<>(waiting.keySet()).stream()
+                                       .filter(position -> position != current && !isInDecodeWindow(position))
+                                       .forEach(position -> waiting.remove(position).complete(null));
+        List<Long> positions = new ArrayList<>();
+        for (long position = first; position <= last; position++) {
+            positions.add(position);
+        }
+        positions.sort(Comparator.comparingLong(this::priority));
+        List<Long> toFetch = new ArrayList<>();
+        for (long position : positions) {
+            if (decoded.containsKey(position) || missing.contains(position) || decoding.contains(position)) {
+                continue;
+            }
+            Encoded fetched = encoded.get(position);
+            if (fetched != null) {
+                if (decoding.size() < MAX_DECODES && isInDecodeWindow(position)) {
+                    decode(fetched);
                 }
+            } else if (!fetching.containsKey(position) && encodedBytes < encodedBudget) {
+                toFetch.add(position);
+            }
+        }
+        while (requests < maxRequests && !toFetch.isEmpty()) {
+            if (batches) {
+                fetchBatch(takeBatch(toFetch));
             } else {
-                noImageFound = true;
-                LOG.debug("no image found, change url...");
-                return;
+                fetch(toFetch.remove(0));
             }
         }
-        LOG.debug("buffer full");
+        postBufferState();
+    }
+
+    /**
+     * @return nearest to current position first, forward before backward
+     */
+    private long priority(long position) {
+        long distance = position - currentPosition;
+        return 2 * Math.abs(distance) + (distance < 0 ? 1 : 0);
+    }
+
+    private boolean isInDecodeWindow(long position) {
+        long distance = position - currentPosition;
+        return distance >= -backward && distance <= forward;
+    }
+
+    private void fetch(long position) {
+        int fetchGeneration = generation;
+        requests++;
+        CompletableFuture<Encoded> fetch = fetchEncoded(position);
+        fetching.put(position, fetch);
+        fetch.whenComplete((fetched, e) -> {
+            requestDone();
+            fetched(position, fetched, e, fetchGeneration);
+        });
     }
 
-    private void fillBufferAsync(boolean fresh) {
-        if (!fresh) {
-            if (bufferTask == null || bufferTask.isDone()) {
-                bufferTask = CompletableFuture.runAsync(this::fillBuffer);
+    private synchronized void requestDone() {
+        requests--;
+    }
+
+    /**
+     * Removes first positions to fetch from list, as many as fit into a batch. Positions showing an image already
+     * in batch (small services repeat images within window) are left for next batch.
+     */
+    private List<Long> takeBatch(List<Long> toFetch) {
+        List<Long> batch = new ArrayList<>();
+        Set<ImageServiceImageId> ids = new HashSet<>();
+        for (Iterator<Long> positions = toFetch.iterator(); positions.hasNext() && batch.size() < BATCH_SIZE; ) {
+            long position = positions.next();
+            if (ids.add(getId(position))) {
+                batch.add(position);
+                positions.remove();
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Fetches images at positions along with their infos in one request. Each image is put into buffer as soon as it
+     * arrived. Images missing in response are fetched again, one by one if service has no batch endpoint. A batch not
+     * done after fetch deadline is aborted, its images still missing are given up like single fetches.
+     */
+    private void fetchBatch(List<Long> positions) {
+        int fetchGeneration = generation;
+        requests++;
+        Map<ImageServiceImageId, Long> byId = new HashMap<>();
+        Map<Long, CompletableFuture<Encoded>> fetches = new HashMap<>();
+        for (long position : positions) {
+            byId.put(getId(position), position);
+            CompletableFuture<Encoded> fetch = new CompletableFuture<>();
+            fetching.put(position, fetch);
+            fetches.put(position, fetch);
+            fetch.whenComplete((fetched, e) -> fetched(position, fetched, e, fetchGeneration));
+        }
+        List<ImageServiceImageId> ids = new ArrayList<>(byId.keySet());
+        ids.sort(Comparator.comparingLong(byId::get));
+        int width = (int) Math.round(viewportWidth);
+        int height = (int) Math.round(viewportHeight);
+        // counted down once, by batch or by its deadline
+        AtomicBoolean done = new AtomicBoolean();
+        Future<?> batch = servicePool.submit(() -> {
+            boolean supported = true;
+            Exception failure = null;
+            long start = System.nanoTime();
+            AtomicLong bytes = new AtomicLong();
+            try {
+                supported = imageService.getImages(ids, width, height, (id, image, info) -> {
+                    Long position = byId.get(id);
+                    if (image != null) {
+                        bytes.addAndGet(image.length);
+                    }
+                    if (position != null) {
+                        CompletableFuture<String> infoFuture;
+                        if (info != null) {
+                            infoFuture = CompletableFuture.completedFuture(info);
+                            infos.put(id, infoFuture);
+                        } else {
+                            // e.g. image taken from http cache
+                            infoFuture = image != null ? getInfo(id) : CompletableFuture.completedFuture(null);
+                        }
+                        fetches.get(position).complete(new Encoded(id, position, image, infoFuture));
+                    }
+                });
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+            }
+            if (bytes.get() > 0) {
+                downloaded(bytes.get(), System.nanoTime() - start);
             }
+            batchDone(fetches.values(), supported, failure, fetchGeneration, done);
+        });
+        CompletableFuture.delayedExecutor(FETCH_DEADLINE_MS, TimeUnit.MILLISECONDS).execute(() -> {
+            // interrupting batch closes its response
+            if (batch.cancel(true)) {
+                String message = "batch of " + ids.size() + " images not done after " + FETCH_DEADLINE_MS + "ms";
+                LOG.debug(message);
+                batchDone(fetches.values(), true, new TimeoutException(message), fetchGeneration, done);
+            }
+        });
+    }
+
+    /**
+     * Gives up images of batch not answered. Called by batch when it is done and by its deadline, only first call
+     * counts.
+     */
+    private synchronized void batchDone(Collection<CompletableFuture<Encoded>> fetches, boolean supported,
+                                        Exception failure, int fetchGeneration, AtomicBoolean done) {
+        if (!done.compareAndSet(false, true)) {
+            return;
+        }
+        requests--;
+        if (fetchGeneration == generation) {
+            batches &= supported;
+            Exception notAnswered = failure != null ? failure : new IOException("not in batch response");
+            fetches.forEach(fetch -> fetch.completeExceptionally(notAnswered));
+        }
+        // a request can be started instead
+        fillBuffer();
+    }
+
+    /**
+     * @return completed with image at position as sent by service along with its info
+     */
+    private CompletableFuture<Encoded> fetchEncoded(long position) {
+        ImageServiceImageId id = getId(position);
+        // info is fetched along, so it is there when asked for
+        CompletableFuture<String> info = getInfo(id);
+        int width = (int) Math.round(viewportWidth);
+        int height = (int) Math.round(viewportHeight);
+        CompletableFuture<byte[]> bytes = fetchHedged(id, width, height).orTimeout(FETCH_DEADLINE_MS,
+                                                                                   TimeUnit.MILLISECONDS);
+        CompletableFuture<Encoded> fetch = bytes.thenApply(image -> new Encoded(id, position, image, info));
+        // cancelling fetch aborts its requests
+        fetch.whenComplete((fetched, e) -> bytes.cancel(false));
+        return fetch;
+    }
+
+    /**
+     * Requests image, and requests it a second time if first request takes longer than most requests before.
+     * Whichever answers first is used. Once result is completed - by a request or from outside, e.g. on a deadline -
+     * requests still running are aborted, so they don't keep a thread of service pool.
+     *
+     * @return completed with image as sent by service, or exceptionally if all requests failed
+     */
+    private CompletableFuture<byte[]> fetchHedged(ImageServiceImageId id, int width, int height) {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        AtomicInteger running = new AtomicInteger(1);
+        List<Future<?>> requests = new CopyOnWriteArrayList<>();
+        requests.add(servicePool.submit(() -> request(id, width, height, result, running)));
+        long hedgeAfter = latencies.get(HEDGE_PERCENTILE);
+        if (hedgeAfter >= 0) {
+            CompletableFuture.delayedExecutor(hedgeAfter, TimeUnit.MILLISECONDS).execute(() -> {
+                if (!result.isDone()) {
+                    running.incrementAndGet();
+                    LOG.debug("Image " + id.getIndex() + " takes longer than " + hedgeAfter + "ms, requesting again.");
+                    Future<?> hedge = servicePool.submit(() -> request(id, width, height, result, running));
+                    requests.add(hedge);
+                    if (result.isDone()) {
+                        hedge.cancel(true);
+                    }
+                }
+            });
+        }
+        // interrupting a request closes its response
+        result.whenComplete((bytes, e) -> requests.forEach(request -> request.cancel(true)));
+        return result;
+    }
+
+    /**
+     * @return info of image from cache, or requested from service if not cached
+     */
+    private CompletableFuture<String> getInfo(ImageServiceImageId id) {
+        CompletableFuture<String> info = infos.asMap().computeIfAbsent(
+                id, key -> CompletableFuture.supplyAsync(() -> imageService.getImageInfo(key), servicePool));
+        info.whenComplete((result, e) -> {
+            if (result == null) {
+                // service failed, next request for this info asks again
+                infos.asMap().remove(id, info);
+            }
+        });
+        return info;
+    }
+
+    /**
+     * Requests image scaled to given size, or original if size is 0.
+     */
+    private void request(ImageServiceImageId id, int width, int height, CompletableFuture<byte[]> result,
+                         AtomicInteger running) {
+        long start = System.nanoTime();
+        try {
+            byte[] bytes = width > 0 && height > 0 ? imageService.getImageBytes(id, width, height)
+                                                   : imageService.getImageBytes(id);
+            long duration = System.nanoTime() - start;
+            latencies.add(TimeUnit.NANOSECONDS.toMillis(duration));
+            if (bytes != null) {
+                downloaded(bytes.length, duration);
+            }
+            result.complete(bytes);
+        } catch (IOException | RuntimeException e) {
+            // other request might still succeed
+            if (running.decrementAndGet() == 0) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private synchronized void fetched(long position, Encoded fetched, Throwable failure, int fetchGeneration) {
+        if (fetchGeneration != generation) {
+            // buffer was cleared since
+            return;
+        }
+        fetching.remove(position);
+        if (failure != null) {
+            LOG.debug("Problem fetching image at " + position + ": " + failure);
+            if (failures.merge(position, 1, Integer::sum) >= MAX_FAILURES) {
+                LOG.debug("Giving up image at " + position + " after " + MAX_FAILURES + " failures.");
+                failures.remove(position);
+                markMissing(position);
+            }
+            // otherwise fetched again as long as it is in window, service might answer next request
+        } else if (position < currentPosition - ENCODED_BACKWARD || position > currentPosition + fetchForward) {
+            LOG.debug("Dropping outdated image at " + position);
+        } else if (fetched.bytes == null) {
+            LOG.debug("no image found at " + position + ", change url...");
+            failures.remove(position);
+            markMissing(position);
         } else {
-            if(bufferTask!=null){
-                bufferTask.cancel(true);
+            failures.remove(position);
+            encoded.put(position, fetched);
+            encodedBytes += fetched.bytes.length;
+            averageEncodedBytes = smooth(averageEncodedBytes, fetched.bytes.length);
+            evictEncodedOverBudget();
+        }
+        fillBuffer();
+    }
+
+    /**
+     * Takes service to have no image at position, a caller waiting for it gets null.
+     */
+    private void markMissing(long position) {
+        missing.add(position);
+        CompletableFuture<Image> waiter = waiting.remove(position);
+        if (waiter != null) {
+            waiter.complete(null);
+        }
+    }
+
+    private void decode(Encoded next) {
+        decoding.add(next.position);
+        int decodeGeneration = generation;
+        double width = viewportWidth;
+        double height = viewportHeight;
+        decodePool.execute(() -> {
+            long start = System.nanoTime();
+            Image image;
+            try {
+                // service might have sent original instead of requested size
+                ByteArrayInputStream in = new ByteArrayInputStream(next.bytes);
+                image = slabPool.wrap(ImageSizes.isLargerThan(next.bytes, width, height)
+                                      ? new Image(in, width, height, true, true) : new Image(in));
+            } catch (RuntimeException | OutOfMemoryError e) {
+                decodeFailed(next, e, decodeGeneration);
+                return;
             }
-            buffer.clear();
-            bufferTask = CompletableFuture.runAsync(this::fillBuffer);
+            decoded(next, image, System.nanoTime() - start, decodeGeneration);
+        });
+    }
+
+    /**
+     * Gives up image that could not be decoded at all, e.g. because there was no memory for it.
+     */
+    private synchronized void decodeFailed(Encoded next, Throwable failure, int decodeGeneration) {
+        if (decodeGeneration != generation) {
+            return;
         }
+        decoding.remove(next.position);
+        LOG.debug("Problem decoding image " + next.id.getIndex() + ": " + failure);
+        dropUndecodable(next);
+        fillBuffer();
     }
 
-    private void postBufferState() {
-        eventBus.post(new BufferState((double) buffer.size() / BUFFER_SIZE,
-                                      (double) historyBuffer.size() / HISTORY_BUFFER_SIZE));
+    private void dropUndecodable(Encoded next) {
+        if (encoded.remove(next.position) != null) {
+            encodedBytes -= next.bytes.length;
+        }
+        markMissing(next.position);
     }
 
-    private int getNextIndex() {
-        if (sorted) {
-            if (lastIndexLoaded + 1 <= maxIndex) {
-                lastIndexLoaded++;
-            } else {
-                lastIndexLoaded = 0;
+    private synchronized void decoded(Encoded next, Image image, long duration, int decodeGeneration) {
+        if (decodeGeneration != generation) {
+            slabPool.release(image);
+            return;
+        }
+        decoding.remove(next.position);
+        decodeSeconds = smooth(decodeSeconds, duration / 1e9);
+        if (image.isError()) {
+            LOG.debug("Problem decoding image " + next.id.getIndex() + ": " + image.getException());
+            dropUndecodable(next);
+        } else if (!isInDecodeWindow(next.position) && next.position != currentPosition) {
+            // window moved on while image was decoding
+            slabPool.release(image);
+        } else {
+            put(new ImageWithId(image, next.id, next.position, next.info));
+        }
+        fillBuffer();
+    }
+
+    private void put(ImageWithId imageWithId) {
+        long position = imageWithId.getPosition();
+        long bytes = bytesOf(imageWithId.getImage());
+        averageImageBytes = averageImageBytes * 0.75 + bytes * 0.25;
+        decoded.put(position, imageWithId);
+        decodedBytes += bytes;
+        CompletableFuture<Image> waiter = waiting.remove(position);
+        if (position == currentPosition) {
+            show(imageWithId);
+            if (waiter == null) {
+                // request for it failed before
+                eventBus.post(imageWithId.getImage());
+            }
+        }
+        if (waiter != null) {
+            waiter.complete(imageWithId.getImage());
+        }
+        LOG.debug("Image at " + position + " decoded into buffer, " + decodedBytes / (1024 * 1024) + "MB buffered.");
+        evictDecodedOverBudget();
+        updateDepth();
+    }
+
+    private void removeDecoded(long position) {
+        ImageWithId removed = decoded.remove(position);
+        if (removed != null) {
+            decodedBytes -= bytesOf(removed.getImage());
+            slabPool.release(removed.getImage());
+        }
+    }
+
+    /**
+     * Drops decoded images furthest from current position until buffer fits into budget. Current image is never
+     * dropped.
+     */
+    private void evictDecodedOverBudget() {
+        while (decodedBytes > budget) {
+            Long furthest = decoded.keySet().stream()
+                                   .filter(position -> position != currentPosition)
+                                   .max(Comparator.comparingLong(this::priority))
+                                   .orElse(null);
+            if (furthest == null) {
+                return;
             }
+            LOG.debug("Buffer over budget, removing image at " + furthest);
+            removeDecoded(furthest);
+        }
+    }
+
+    private void evictEncodedOverBudget() {
+        while (encodedBytes > encodedBudget && !encoded.isEmpty()) {
+            long furthest = encoded.keySet().stream().max(Comparator.comparingLong(this::priority)).get();
+            encodedBytes -= encoded.remove(furthest).bytes.length;
+        }
+    }
+
+    private synchronized void downloaded(long bytes, long duration) {
+        throughput = smooth(throughput, bytes / Math.max(duration / 1e9, 0.001));
+    }
+
+    /**
+     * Calculates buffer depth: as many images decoded ahead as are looked at in configured seconds plus while one is
+     * decoded, and fetched ahead on top of them as many as are looked at while one is fetched. Decoded images are
+     * bounded by budget and average size of decoded images. Configured depth is used until browsing speed is known.
+     */
+    private void updateDepth() {
+        // without budget only current image is decoded
+        int fitting = budget == 0 ? 0 : (int) Math.max(1, Math.min(ENCODED_FORWARD,
+                                                                   budget * FORWARD_SHARE / averageImageBytes));
+        int oldForward = forward;
+        if (dwellSeconds < 0) {
+            forward = Math.min(startForward, fitting);
+            fetchForward = ENCODED_FORWARD;
         } else {
-            lastIndexLoaded = random.nextInt(maxIndex + 1);
+            double decode = Math.max(0, decodeSeconds);
+            double fetch = throughput > 0 && averageEncodedBytes > 0 ? averageEncodedBytes / throughput : 0;
+            forward = (int) Math.min(fitting, Math.max(1, Math.ceil((aheadSeconds + decode) / dwellSeconds)));
+            fetchForward = (int) Math.min(ENCODED_FORWARD, forward + Math.ceil(fetch / dwellSeconds));
         }
-        return lastIndexLoaded;
+        backward = (int) Math.max(0, Math.min(maxBackward, budget * (1 - FORWARD_SHARE) / averageImageBytes));
+        if (forward != oldForward) {
+            LOG.debug("Buffering " + forward + " images ahead, fetching " + fetchForward + " ahead.");
+        }
+    }
+
+    /**
+     * @return average moved towards sample, sample itself if there is no average yet
+     */
+    private static double smooth(double average, double sample) {
+        return average < 0 ? sample : average * 0.75 + sample * 0.25;
+    }
+
+    private static long bytesOf(Image image) {
+        return (long) image.getWidth() * (long) image.getHeight() * 4;
+    }
+
+    /**
+     * Drops everything buffered and fetches images again, e.g. because path changed. Fetches still in flight are
+     * cancelled.
+     */
+    private synchronized void refillBuffer() {
+        generation++;
+        forgetCurrent();
+        new ArrayList<>(decoded.keySet()).forEach(this::removeDecoded);
+        encoded.clear();
+        encodedBytes = 0;
+        missing.clear();
+        failures.clear();
+        cancelFetches();
+        decoding.clear();
+        // callers get image of new path by asking again
+        waiting.values().forEach(waiter -> waiter.complete(null));
+        waiting.clear();
+        currentPosition = -1;
+        currentImage = null;
+        fillBuffer();
+    }
+
+    /**
+     * Drops images of old viewport size and loads window again. Current image is shown again once loaded in new size.
+     */
+    private synchronized void reloadBuffer() {
+        generation++;
+        forgetCurrent();
+        new ArrayList<>(decoded.keySet()).forEach(this::removeDecoded);
+        encoded.clear();
+        encodedBytes = 0;
+        missing.clear();
+        failures.clear();
+        cancelFetches();
+        decoding.clear();
+        // waiting callers get image in new size
+        fillBuffer();
+    }
+
+    /**
+     * Cancels fetches of previous generation, their requests are aborted. A batch runs until it is done, requests are
+     * counted until they are done, so never more than allowed are in flight.
+     */
+    private void cancelFetches() {
+        new ArrayList<>(fetching.values()).forEach(fetch -> fetch.cancel(true));
+        fetching.clear();
+    }
+
+    /**
+     * Drops current image without releasing it: it might still be on its way to the screen, so its slab is left to
+     * garbage collector.
+     */
+    private void forgetCurrent() {
+        ImageWithId current = decoded.remove(currentPosition);
+        if (current != null) {
+            decodedBytes -= bytesOf(current.getImage());
+        }
+    }
+
+    private void postBufferState() {
+        int forwardCount = 0;
+        for (long position = currentPosition + 1; position <= currentPosition + forward; position++) {
+            forwardCount += decoded.containsKey(position) ? 1 : 0;
+        }
+        int backwardCount = 0;
+        for (long position = currentPosition - backward; position < currentPosition; position++) {
+            backwardCount += decoded.containsKey(position) ? 1 : 0;
+        }
+        eventBus.post(new BufferState((double) forwardCount / forward,
+                                      backward == 0 ? 1 : (double) backwardCount / backward, forward));
+    }
+
+    /**
+     * Image as sent by service.
+     */
+    private static class Encoded {
+        private final ImageServiceImageId id;
+        private final long position;
+        private final byte[] bytes;
+        private final CompletableFuture<String> info;
+
+        private Encoded(ImageServiceImageId id, long position, byte[] bytes, CompletableFuture<String> info) {
+            this.id = id;
+            this.position = position;
+            this.bytes = bytes;
+            this.info = info;
+        }
+    }
+
+    /**
+     * @return image at position, images follow each other by index if sorted, in a shuffled order otherwise - both
+     *         starting over after last image
+     */
+    private ImageServiceImageId getId(long position) {
+        int index = sorted ? (int) Math.floorMod(position, (long) Math.max(1, maxIndex + 1))
+                           : shuffle.indexAt(position);
+        return new ImageServiceImageId(index, filterPath);
     }
 
 }
@@ -4,8 +4,10 @@ import com.google.common.base.Preconditions;
 
 import javafx.scene.image.Image;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
- * pair of image and its {@link ImageServiceImageId}.
+ * pair of image and its {@link ImageServiceImageId}, along with its info.
  * @author moritz
  *
  */
@@ -13,10 +15,14 @@ public class ImageWithId {
 
     private ImageServiceImageId id;
     private Image image;
+    private long position;
+    private CompletableFuture<String> info;
 
-    public ImageWithId(Image image, ImageServiceImageId id) {
+    public ImageWithId(Image image, ImageServiceImageId id, long position, CompletableFuture<String> info) {
         this.image = Preconditions.checkNotNull(image);
         this.id = Preconditions.checkNotNull(id);
+        this.position = position;
+        this.info = Preconditions.checkNotNull(info);
     }
 
     /**
@@ -26,6 +32,13 @@ public class ImageWithId {
         return id;
     }
 
+    /**
+     * @return position of image in order images are shown
+     */
+    public long getPosition() {
+        return position;
+    }
+
     /**
      * @return the image
      */
@@ -33,4 +46,11 @@ public class ImageWithId {
         return image;
     }
 
+    /**
+     * @return the info, completed when received from service
+     */
+    public CompletableFuture<String> getInfo() {
+        return info;
+    }
+
 }
@@ -0,0 +1,36 @@
+package de.moritz.fastimageviewer.image.imageservice;
+
+import java.util.Arrays;
+
+/**
+ * Durations of the last requests, to tell when a request takes unusually long.
+ */
+class Latencies {
+
+    private static final int SAMPLES = 100;
+    /**
+     * percentiles are not known before this many requests finished
+     */
+    private static final int MIN_SAMPLES = 20;
+
+    private final long[] millis = new long[SAMPLES];
+    private int count = 0;
+
+    synchronized void add(long durationMillis) {
+        millis[count++ % SAMPLES] = durationMillis;
+    }
+
+    /**
+     * @param percentile between 0 and 1
+     * @return duration not exceeded by given share of last requests, or -1 if too few requests finished yet
+     */
+    synchronized long get(double percentile) {
+        int samples = Math.min(count, SAMPLES);
+        if (samples < MIN_SAMPLES) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(millis, samples);
+        Arrays.sort(sorted);
+        return sorted[Math.min(samples - 1, (int) Math.ceil(percentile * samples) - 1)];
+    }
+}
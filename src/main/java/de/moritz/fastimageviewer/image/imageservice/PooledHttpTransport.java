@@ -0,0 +1,346 @@
+package de.moritz.fastimageviewer.image.imageservice;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Transport for google http client based on one shared {@link HttpClient}. The client keeps connections alive and
+ * pools them (size and keep alive time can be set by system properties {@code jdk.httpclient.connectionPoolSize} and
+ * {@code jdk.httpclient.keepalive.timeout}), with HTTP/2 several requests share one connection. Closing a response
+ * drains what is left of its body, so its connection can be used again instead of being thrown away. Bodies are not
+ * read by {@link HttpResponse.BodyHandlers#ofInputStream()}, which has no timeout and ignores interrupts, but by an
+ * own stream: a read fails if no data arrives for read timeout or if the reading thread is interrupted (e.g. request
+ * was cancelled), and the body is aborted then.
+ */
+@Singleton
+public class PooledHttpTransport extends HttpTransport {
+
+    /**
+     * bytes read at most to drain a response body, connection is closed if more is left
+     */
+    private static final long MAX_DRAIN = 256 * 1024;
+    /**
+     * headers set by http client itself
+     */
+    private static final Set<String> RESTRICTED_HEADERS = ImmutableSet.of("connection", "content-length", "expect",
+                                                                          "host", "upgrade");
+
+    private final HttpClient client;
+
+    @Inject
+    private PooledHttpTransport(HttpClient client) {
+        this.client = checkNotNull(client);
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildRequest(String method, String url) {
+        return new PooledRequest(method, url);
+    }
+
+    private class PooledRequest extends LowLevelHttpRequest {
+        private final HttpRequest.Builder builder;
+        private final String method;
+        private int readTimeout = 0;
+
+        private PooledRequest(String method, String url) {
+            this.method = method;
+            this.builder = HttpRequest.newBuilder(URI.create(url));
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if (!RESTRICTED_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+                builder.header(name, value);
+            }
+        }
+
+        @Override
+        public void setTimeout(int connectTimeout, int readTimeout) {
+            // connect timeout is set on shared client, here it is the time until response headers are received
+            this.readTimeout = readTimeout;
+            if (readTimeout > 0) {
+                builder.timeout(Duration.ofMillis((long) connectTimeout + readTimeout));
+            }
+        }
+
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+            HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.noBody();
+            if (getStreamingContent() != null) {
+                if (getContentType() != null) {
+                    builder.header("Content-Type", getContentType());
+                }
+                if (getContentEncoding() != null) {
+                    builder.header("Content-Encoding", getContentEncoding());
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                getStreamingContent().writeTo(out);
+                body = HttpRequest.BodyPublishers.ofByteArray(out.toByteArray());
+            }
+            try {
+                HttpResponse<Flow.Publisher<List<ByteBuffer>>> response = client.send(
+                        builder.method(method, body).build(), HttpResponse.BodyHandlers.ofPublisher());
+                BodyInputStream content = new BodyInputStream(readTimeout);
+                response.body().subscribe(content);
+                return new PooledResponse(response, new DrainingInputStream(content));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Request interrupted");
+            }
+        }
+    }
+
+    private static class PooledResponse extends LowLevelHttpResponse {
+        private final HttpResponse<?> response;
+        private final List<String> headerNames = new ArrayList<>();
+        private final List<String> headerValues = new ArrayList<>();
+        private final InputStream content;
+
+        private PooledResponse(HttpResponse<?> response, InputStream content) {
+            this.response = response;
+            this.content = content;
+            response.headers().map().forEach((name, values) -> values.forEach(value -> {
+                headerNames.add(name);
+                headerValues.add(value);
+            }));
+        }
+
+        @Override
+        public InputStream getContent() {
+            return content;
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return response.headers().firstValue("Content-Encoding").orElse(null);
+        }
+
+        @Override
+        public long getContentLength() {
+            return response.headers().firstValueAsLong("Content-Length").orElse(-1);
+        }
+
+        @Override
+        public String getContentType() {
+            return response.headers().firstValue("Content-Type").orElse(null);
+        }
+
+        @Override
+        public String getStatusLine() {
+            return (response.version() == HttpClient.Version.HTTP_2 ? "HTTP/2 " : "HTTP/1.1 ")
+                   + response.statusCode();
+        }
+
+        @Override
+        public int getStatusCode() {
+            return response.statusCode();
+        }
+
+        @Override
+        public String getReasonPhrase() {
+            // not available from http client, status code is enough
+            return "";
+        }
+
+        @Override
+        public int getHeaderCount() {
+            return headerNames.size();
+        }
+
+        @Override
+        public String getHeaderName(int index) {
+            return headerNames.get(index);
+        }
+
+        @Override
+        public String getHeaderValue(int index) {
+            return headerValues.get(index);
+        }
+
+        @Override
+        public void disconnect() throws IOException {
+            content.close();
+        }
+    }
+
+    /**
+     * Body as stream, filled by http client one list of buffers at a time. A read fails if no data arrives for read
+     * timeout or if its thread is interrupted, body is aborted then.
+     */
+    private static class BodyInputStream extends InputStream implements Flow.Subscriber<List<ByteBuffer>> {
+        /**
+         * marks end of body
+         */
+        private static final List<ByteBuffer> END = new ArrayList<>();
+
+        private final long timeoutMs;
+        private final BlockingQueue<List<ByteBuffer>> received = new LinkedBlockingQueue<>();
+        private volatile Flow.Subscription subscription;
+        private volatile Throwable failure;
+        private volatile boolean closed = false;
+        private Iterator<ByteBuffer> buffers = Collections.emptyIterator();
+        private ByteBuffer current;
+        private boolean ended = false;
+
+        /**
+         * @param timeoutMs time a read may wait for data, 0 for no timeout
+         */
+        private BodyInputStream(long timeoutMs) {
+            this.timeoutMs = timeoutMs;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (closed) {
+                subscription.cancel();
+            } else {
+                subscription.request(1);
+            }
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> item) {
+            received.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            failure = throwable;
+            received.add(END);
+        }
+
+        @Override
+        public void onComplete() {
+            received.add(END);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Body closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            while (current == null || !current.hasRemaining()) {
+                if (buffers.hasNext()) {
+                    current = buffers.next();
+                } else if (ended || !receive()) {
+                    return -1;
+                }
+            }
+            int read = Math.min(len, current.remaining());
+            current.get(b, off, read);
+            return read;
+        }
+
+        /**
+         * Waits for next buffers.
+         *
+         * @return false if body ended
+         */
+        private boolean receive() throws IOException {
+            List<ByteBuffer> next;
+            try {
+                next = timeoutMs > 0 ? received.poll(timeoutMs, TimeUnit.MILLISECONDS) : received.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new InterruptedIOException("Read interrupted");
+            }
+            if (next == null) {
+                close();
+                throw new SocketTimeoutException("No data received for " + timeoutMs + "ms");
+            }
+            if (next == END) {
+                ended = true;
+                if (failure != null) {
+                    throw new IOException("Body failed", failure);
+                }
+                return false;
+            }
+            subscription.request(1);
+            buffers = next.iterator();
+            return true;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            Flow.Subscription s = subscription;
+            if (s != null) {
+                s.cancel();
+            }
+        }
+    }
+
+    /**
+     * Reads rest of body on close, a body not read to its end would cost the connection.
+     */
+    private static class DrainingInputStream extends FilterInputStream {
+        private boolean closed = false;
+
+        private DrainingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                long drained = 0;
+                byte[] skip = new byte[8192];
+                int read;
+                while (drained < MAX_DRAIN && (read = in.read(skip)) >= 0) {
+                    drained += read;
+                }
+            } catch (IOException e) {
+                // connection is lost anyway
+            } finally {
+                super.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package de.moritz.fastimageviewer.image.imageservice;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Seeded pseudo random order of indexes 0 to size - 1, in which every index appears once per cycle. Index at a
+ * position is computed, no array of all indexes is kept: a Feistel network permutes the smallest even number of bits
+ * covering size, results out of range are permuted again (cycle walking) until they fall into it. Each cycle is
+ * shuffled with another key.
+ */
+class Shuffle {
+
+    private static final int ROUNDS = 4;
+
+    private final long seed;
+    private final int size;
+    private final int halfBits;
+    private final long halfMask;
+
+    /**
+     * @param seed same seed gives same order
+     * @param size number of indexes
+     */
+    Shuffle(long seed, int size) {
+        checkArgument(size > 0, "size must be positive");
+        this.seed = seed;
+        this.size = size;
+        int bits = Math.max(2, 64 - Long.numberOfLeadingZeros(size - 1));
+        this.halfBits = (bits + 1) / 2;
+        this.halfMask = (1L << halfBits) - 1;
+    }
+
+    /**
+     * @param position position in order, negative positions are in cycles before first one
+     * @return index at position
+     */
+    int indexAt(long position) {
+        long key = mix(seed + Math.floorDiv(position, size));
+        long index = Math.floorMod(position, size);
+        do {
+            index = permute(index, key);
+        } while (index >= size);
+        return (int) index;
+    }
+
+    private long permute(long value, long key) {
+        long left = value >>> halfBits;
+        long right = value & halfMask;
+        for (int round = 0; round < ROUNDS; round++) {
+            long next = left ^ (mix(right ^ mix(key + round)) & halfMask);
+            left = right;
+            right = next;
+        }
+        return left << halfBits | right;
+    }
+
+    /**
+     * @return well distributed bits of value (finalizer of SplitMix64)
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+}
@@ -3,10 +3,12 @@ package de.moritz.fastimageviewer.main;
 public class BufferState {
     private double forward = 0;
     private double backward = 0;
+    private int target = 0;
 
-    public BufferState(double forward, double backward){
+    public BufferState(double forward, double backward, int target){
         this.forward = forward;
         this.backward=backward;
+        this.target = target;
     }
 
     public double getForward() {
@@ -16,4 +18,11 @@ public class BufferState {
     public double getBackward() {
         return backward;
     }
+
+    /**
+     * @return number of images buffer currently tries to keep ahead
+     */
+    public int getTarget() {
+        return target;
+    }
 }
@@ -8,8 +8,11 @@ import com.google.inject.spi.InjectionListener;
 import com.google.inject.spi.TypeEncounter;
 import com.google.inject.spi.TypeListener;
 import de.moritz.fastimageviewer.image.ImageProvider;
+import de.moritz.fastimageviewer.image.file.EncodedBuffer;
 import de.moritz.fastimageviewer.image.file.FileImageProvider;
+import de.moritz.fastimageviewer.image.file.FolderIndex;
 import de.moritz.fastimageviewer.image.file.ImageBuffer;
+import de.moritz.fastimageviewer.image.file.ImageLoader;
 import de.moritz.fastimageviewer.image.imageservice.ImageServiceApi;
 import de.moritz.fastimageviewer.image.imageservice.ImageServiceApiFactory;
 import de.moritz.fastimageviewer.image.imageservice.ImageServiceApiImpl;
@@ -17,12 +20,102 @@ import de.moritz.fastimageviewer.image.imageservice.ImageServiceImageProvider;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.Target;
+import java.net.http.HttpClient;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.lang.annotation.ElementType.*;
 import static java.lang.annotation.RetentionPolicy.RUNTIME;
 
 public class DiModule extends AbstractModule {
 
+    /**
+     * System property to set the number of threads decoding images into buffer.
+     */
+    public static final String DECODE_THREADS_PROPERTY = "fastimageviewer.decodeThreads";
+
+    /**
+     * System property to set the number of images read ahead of decoding at most.
+     */
+    public static final String READ_AHEAD_PROPERTY = "fastimageviewer.readAhead";
+
+    /**
+     * System property to set the number of threads scanning folders.
+     */
+    public static final String SCAN_THREADS_PROPERTY = "fastimageviewer.scanThreads";
+
+    /**
+     * System property to set the number of threads reading files into memory.
+     */
+    public static final String IO_THREADS_PROPERTY = "fastimageviewer.ioThreads";
+
+    /**
+     * System property to set the folder caches are stored in.
+     */
+    public static final String CACHE_DIR_PROPERTY = "fastimageviewer.cacheDir";
+
+    /**
+     * System property to switch off watching folders for changes.
+     */
+    public static final String WATCH_PROPERTY = "fastimageviewer.watch";
+
+    /**
+     * System property to set the memory (in MB) used by image buffer.
+     */
+    public static final String BUFFER_MB_PROPERTY = "fastimageviewer.bufferMb";
+
+    /**
+     * System property to set the memory (in MB) used for files read ahead.
+     */
+    public static final String ENCODED_BUFFER_MB_PROPERTY = "fastimageviewer.encodedBufferMb";
+
+    /**
+     * System property to set the disk space (in MB) used for previews, 0 switches preview cache off.
+     */
+    public static final String PREVIEW_CACHE_MB_PROPERTY = "fastimageviewer.previewCacheMb";
+
+    /**
+     * System property to set the number of images viewed last kept as decoded pixels on disk, 0 switches pixel cache
+     * off.
+     */
+    public static final String PIXEL_CACHE_IMAGES_PROPERTY = "fastimageviewer.pixelCacheImages";
+
+    /**
+     * System property to use HTTP/2 for image service, so requests share one connection.
+     */
+    public static final String HTTP2_PROPERTY = "fastimageviewer.http2";
+
+    /**
+     * System property to set the number of requests to image service in flight at once.
+     */
+    public static final String SERVICE_REQUESTS_PROPERTY = "fastimageviewer.serviceRequests";
+
+    /**
+     * System property to set the disk space (in MB) used for images received from image service, 0 switches http
+     * cache off.
+     */
+    public static final String HTTP_CACHE_MB_PROPERTY = "fastimageviewer.httpCacheMb";
+
+    /**
+     * System property to set the number of service images decoded ahead until browsing speed is known.
+     */
+    public static final String SERVICE_FORWARD_PROPERTY = "fastimageviewer.serviceForward";
+
+    /**
+     * System property to set the number of service images kept decoded behind current one at most.
+     */
+    public static final String SERVICE_BACKWARD_PROPERTY = "fastimageviewer.serviceBackward";
+
+    /**
+     * System property to set the seconds of viewing service images are buffered ahead.
+     */
+    public static final String SERVICE_AHEAD_SECONDS_PROPERTY = "fastimageviewer.serviceAheadSeconds";
+
     private final String[] args;
 
     private volatile EventBus eventBus = new EventBus();
@@ -35,6 +128,12 @@ public class DiModule extends AbstractModule {
     protected void configure() {
         install(new FactoryModuleBuilder().implement(ImageBuffer.class, ImageBuffer.class)
                                           .build(ImageBuffer.Inst.class));
+        install(new FactoryModuleBuilder().implement(EncodedBuffer.class, EncodedBuffer.class)
+                                          .build(EncodedBuffer.Inst.class));
+        install(new FactoryModuleBuilder().implement(ImageLoader.class, ImageLoader.class)
+                                          .build(ImageLoader.Inst.class));
+        install(new FactoryModuleBuilder().implement(FolderIndex.class, FolderIndex.class)
+                                          .build(FolderIndex.Inst.class));
         install(new FactoryModuleBuilder().implement(ImageProvider.class, ImageServiceImageProvider.class)
                                           .build(ImageServiceImageProvider.Inst.class));
         install(new FactoryModuleBuilder().implement(ImageProvider.class, FileImageProvider.class)
@@ -52,10 +151,392 @@ public class DiModule extends AbstractModule {
         return args;
     }
 
+    /**
+     * Thread pool used to decode images into buffer. Size defaults to cpu count - 1 (at least 2) and can be set by
+     * system property {@value #DECODE_THREADS_PROPERTY}.
+     *
+     * @return decode pool
+     */
+    @Provides
+    @Singleton
+    @DecodePool
+    public ExecutorService getDecodePool() {
+        return Executors.newFixedThreadPool(getDecodeThreads(), daemonThreads("decode-"));
+    }
+
+    private static int getDecodeThreads() {
+        return Math.max(1, Integer.getInteger(DECODE_THREADS_PROPERTY,
+                                              Math.max(2, Runtime.getRuntime().availableProcessors() - 1)));
+    }
+
+    /**
+     * Number of images read into memory but not decoded yet at most, so reading can't run away from decoding.
+     * Defaults to twice the decode threads and can be set by system property {@value #READ_AHEAD_PROPERTY}.
+     *
+     * @return read ahead limit
+     */
+    @Provides
+    @Singleton
+    @ReadAhead
+    public Integer getReadAhead() {
+        return Math.max(1, Integer.getInteger(READ_AHEAD_PROPERTY, 2 * getDecodeThreads()));
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Thread pool used to list folders. Listing is mostly waiting for (network) file system, so it defaults to 8
+     * threads and can be set by system property {@value #SCAN_THREADS_PROPERTY}.
+     *
+     * @return scan pool
+     */
+    @Provides
+    @Singleton
+    @ScanPool
+    public ExecutorService getScanPool() {
+        return Executors.newFixedThreadPool(Math.max(1, Integer.getInteger(SCAN_THREADS_PROPERTY, 8)),
+                                            daemonThreads("scan-"));
+    }
+
+    /**
+     * Thread pool used to read files into memory ahead of decoding. Reading is mostly waiting for (network) file
+     * system, so it defaults to 8 threads and can be set by system property {@value #IO_THREADS_PROPERTY}.
+     *
+     * @return io pool
+     */
+    @Provides
+    @Singleton
+    @IoPool
+    public ExecutorService getIoPool() {
+        return Executors.newFixedThreadPool(Math.max(1, Integer.getInteger(IO_THREADS_PROPERTY, 8)),
+                                            daemonThreads("io-"));
+    }
+
+    /**
+     * Thread pool used by image loaders to read files they decode next. It is not shared with reading ahead into
+     * encoded buffer, so an image the user waits for does not queue behind files read ahead. Loaders read no more
+     * files at once than read ahead limit allows, so the pool has as many threads.
+     *
+     * @return load pool
+     */
+    @Provides
+    @Singleton
+    @LoadPool
+    public ExecutorService getLoadPool() {
+        return Executors.newFixedThreadPool(getReadAhead(), daemonThreads("load-"));
+    }
+
+    /**
+     * Thread pool loading images in full resolution to zoom into. It is not shared with prefetching, so a zoom does
+     * not wait for images loaded ahead.
+     *
+     * @return full image pool
+     */
+    @Provides
+    @Singleton
+    @FullImagePool
+    public ExecutorService getFullImagePool() {
+        return Executors.newFixedThreadPool(2, daemonThreads("full-"));
+    }
+
+    /**
+     * Bytes of files read ahead and held as read from disk. Defaults to a quarter of max heap and can be set by system
+     * property {@value #ENCODED_BUFFER_MB_PROPERTY}.
+     *
+     * @return encoded buffer budget in bytes
+     */
+    @Provides
+    @Singleton
+    @EncodedBudget
+    public Long getEncodedBudget() {
+        Long mb = Long.getLong(ENCODED_BUFFER_MB_PROPERTY);
+        return mb != null ? Math.max(0, mb) * 1024 * 1024 : Runtime.getRuntime().maxMemory() / 4;
+    }
+
+    /**
+     * Bytes of decoded images held by image buffer. Defaults to half of max heap and can be set by system property
+     * {@value #BUFFER_MB_PROPERTY}, 0 keeps only the current image.
+     *
+     * @return buffer budget in bytes
+     */
+    @Provides
+    @Singleton
+    @BufferBudget
+    public Long getBufferBudget() {
+        Long mb = Long.getLong(BUFFER_MB_PROPERTY);
+        return mb != null ? Math.max(0, mb) * 1024 * 1024 : Runtime.getRuntime().maxMemory() / 2;
+    }
+
+    /**
+     * Http client shared by all image service connections, so its connection pool is shared too. Uses HTTP/1.1 with
+     * keep alive, HTTP/2 (falling back to HTTP/1.1 if server does not support it) if system property
+     * {@value #HTTP2_PROPERTY} is true.
+     *
+     * @return http client
+     */
+    @Provides
+    @Singleton
+    public HttpClient getHttpClient() {
+        return HttpClient.newBuilder()
+                         .version(Boolean.getBoolean(HTTP2_PROPERTY) ? HttpClient.Version.HTTP_2
+                                                                     : HttpClient.Version.HTTP_1_1)
+                         .connectTimeout(Duration.ofSeconds(10))
+                         .followRedirects(HttpClient.Redirect.NORMAL)
+                         .build();
+    }
+
+    /**
+     * Number of image requests sent to image service at once. Defaults to 4 and can be set by system property
+     * {@value #SERVICE_REQUESTS_PROPERTY}.
+     *
+     * @return requests in flight at most
+     */
+    @Provides
+    @Singleton
+    @ServiceRequests
+    public Integer getServiceRequests() {
+        return Math.max(1, Integer.getInteger(SERVICE_REQUESTS_PROPERTY, 4));
+    }
+
+    /**
+     * Thread pool running requests to image service, per request in flight one thread for it and one for a second
+     * request sent if it takes too long.
+     *
+     * @param requests requests in flight at most
+     * @return service pool
+     */
+    @Provides
+    @Singleton
+    @ServicePool
+    public ExecutorService getServicePool(@ServiceRequests Integer requests) {
+        return Executors.newFixedThreadPool(2 * requests, daemonThreads("service-"));
+    }
+
+    /**
+     * Images of image service decoded ahead as long as browsing speed is not known, fewer if they don't fit into
+     * buffer budget. Defaults to 10 and can be set by system property {@value #SERVICE_FORWARD_PROPERTY}.
+     *
+     * @return initial forward depth of service buffer
+     */
+    @Provides
+    @Singleton
+    @ServiceForward
+    public Integer getServiceForward() {
+        return Math.max(1, Integer.getInteger(SERVICE_FORWARD_PROPERTY, 10));
+    }
+
+    /**
+     * Images of image service kept decoded behind current one at most, fewer if they don't fit into buffer budget.
+     * Defaults to 5 and can be set by system property {@value #SERVICE_BACKWARD_PROPERTY}.
+     *
+     * @return backward depth of service buffer
+     */
+    @Provides
+    @Singleton
+    @ServiceBackward
+    public Integer getServiceBackward() {
+        return Math.max(0, Integer.getInteger(SERVICE_BACKWARD_PROPERTY, 5));
+    }
+
+    /**
+     * Seconds of viewing buffered ahead: service buffer grows when images are browsed fast and shrinks when they are
+     * looked at longer, within buffer budget. Defaults to 5 and can be set by system property
+     * {@value #SERVICE_AHEAD_SECONDS_PROPERTY}.
+     *
+     * @return seconds buffered ahead
+     */
+    @Provides
+    @Singleton
+    @ServiceAheadSeconds
+    public Integer getServiceAheadSeconds() {
+        return Math.max(1, Integer.getInteger(SERVICE_AHEAD_SECONDS_PROPERTY, 5));
+    }
+
+    /**
+     * Folder for data kept between sessions. Defaults to .fastimageviewer in user home and can be set by system
+     * property {@value #CACHE_DIR_PROPERTY}.
+     *
+     * @return cache folder, might not exist yet
+     */
+    @Provides
+    @Singleton
+    @CacheDir
+    public Path getCacheDir() {
+        String dir = System.getProperty(CACHE_DIR_PROPERTY);
+        return dir != null ? Paths.get(dir) : Paths.get(System.getProperty("user.home"), ".fastimageviewer");
+    }
+
+    /**
+     * Disk space for previews stored in cache folder. Defaults to 1GB and can be set by system property
+     * {@value #PREVIEW_CACHE_MB_PROPERTY}.
+     *
+     * @return preview cache budget in bytes
+     */
+    @Provides
+    @Singleton
+    @PreviewCacheBudget
+    public Long getPreviewCacheBudget() {
+        return Math.max(0, Long.getLong(PREVIEW_CACHE_MB_PROPERTY, 1024)) * 1024 * 1024;
+    }
+
+    /**
+     * Disk space for images received from image service, stored in cache folder. Defaults to 512MB and can be set by
+     * system property {@value #HTTP_CACHE_MB_PROPERTY}.
+     *
+     * @return http cache budget in bytes
+     */
+    @Provides
+    @Singleton
+    @HttpCacheBudget
+    public Long getHttpCacheBudget() {
+        return Math.max(0, Long.getLong(HTTP_CACHE_MB_PROPERTY, 512)) * 1024 * 1024;
+    }
+
+    /**
+     * Number of images viewed last kept as memory-mapped pixels. Defaults to 20 and can be set by system property
+     * {@value #PIXEL_CACHE_IMAGES_PROPERTY}.
+     *
+     * @return pixel cache size in images
+     */
+    @Provides
+    @Singleton
+    @PixelCacheSize
+    public Integer getPixelCacheSize() {
+        return Math.max(0, Integer.getInteger(PIXEL_CACHE_IMAGES_PROPERTY, 20));
+    }
+
+    /**
+     * If folders are watched for created and deleted images after scanning. Defaults to true and can be set by system
+     * property {@value #WATCH_PROPERTY}.
+     *
+     * @return true if folders should be watched
+     */
+    @Provides
+    @Singleton
+    @WatchFolders
+    public Boolean isWatchFolders() {
+        return Boolean.parseBoolean(System.getProperty(WATCH_PROPERTY, "true"));
+    }
+
     @BindingAnnotation
     @Target({FIELD, PARAMETER, METHOD})
     @Retention(RUNTIME)
     public @interface Args {
     }
 
+    @BindingAnnotation
+    @Target({FIELD, PARAMETER, METHOD})
+    @Retention(RUNTIME)
+    public @interface DecodePool {
+    }
+
+    @BindingAnnotation
+    @Target({FIELD, PARAMETER, METHOD})
+    @Retention(RUNTIME)
+    public @interface BufferBudget {
+    }
+
+    @BindingAnnotation
+    @Target({FIELD, PARAMETER, METHOD})
+    @Retention(RUNTIME)
+    public @interface ScanPool {
+    }
+
+    @BindingAnnotation
+    @Target({FIELD, PARAMETER, METHOD})
+    @Retention(RUNTIME)
+    public @interface CacheDir {
+    }
+
+    @BindingAnnotation
+    @Target({FIELD, PARAMETER, METHOD})
+    @Retention(RUNTIME)
+    public @interface WatchFolders {
+    }
+
+    @BindingAnnotation
+    @Target({FIELD, PARAMETER, METHOD})
+    @Retention(RUNTIME)
+    public @interface PreviewCacheBudget {
+    }
+
+    @BindingAnnotation
+    @Target({FIELD, PARAMETER, METHOD})
+    @Retention(RUNTIME)
+    public @interface PixelCacheSize {
+    }
+
+    @BindingAnnotation
+    @Target({FIELD, PARAMETER, METHOD})
+    @Retention(RUNTIME)
+    public @interface IoPool {
+    }
+
+    @BindingAnnotation
+    @Target({FIELD, PARAMETER, METHOD})
+    @Retention(RUNTIME)
+    public @interface LoadPool {
+    }
+
+    @BindingAnnotation
+    @Target({FIELD, PARAMETER, METHOD})
+    @Retention(RUNTIME)
+    public @interface FullImagePool {
+    }
+
+    @BindingAnnotation
+    @Target({FIELD, PARAMETER, METHOD})
+    @Retention(RUNTIME)
+    public @interface EncodedBudget {
+    }
+
+    @BindingAnnotation
+    @Target({FIELD, PARAMETER, METHOD})
+    @Retention(RUNTIME)
+    public @interface ReadAhead {
+    }
+
+    @BindingAnnotation
+    @Target({FIELD, PARAMETER, METHOD})
+    @Retention(RUNTIME)
+    public @interface ServiceRequests {
+    }
+
+    @BindingAnnotation
+    @Target({FIELD, PARAMETER, METHOD})
+    @Retention(RUNTIME)
+    public @interface ServicePool {
+    }
+
+    @BindingAnnotation
+    @Target({FIELD, PARAMETER, METHOD})
+    @Retention(RUNTIME)
+    public @interface HttpCacheBudget {
+    }
+
+    @BindingAnnotation
+    @Target({FIELD, PARAMETER, METHOD})
+    @Retention(RUNTIME)
+    public @interface ServiceForward {
+    }
+
+    @BindingAnnotation
+    @Target({FIELD, PARAMETER, METHOD})
+    @Retention(RUNTIME)
+    public @interface ServiceBackward {
+    }
+
+    @BindingAnnotation
+    @Target({FIELD, PARAMETER, METHOD})
+    @Retention(RUNTIME)
+    public @interface ServiceAheadSeconds {
+    }
+
 }
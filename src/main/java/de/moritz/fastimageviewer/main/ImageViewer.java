@@ -5,6 +5,8 @@ import org.slf4j.LoggerFactory;
 
 import com.google.inject.Inject;
 
+import de.moritz.fastimageviewer.image.PixelSlabPool;
+
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.Pane;
@@ -13,18 +15,48 @@ public class ImageViewer extends ImageView {
 
     private static final Logger LOG = LoggerFactory.getLogger( ImageViewer.class );
 
+    /**
+     * image shown if not zoomed, might be scaled down to viewport size
+     */
+    private Image displayImage;
+    /**
+     * full resolution image shown while zoomed, null if not zoomed
+     */
+    private Image zoomedImage;
+    /**
+     * images shown are acquired, so their pixels are not reused while on screen
+     */
+    private final PixelSlabPool slabPool;
+
     @Inject
-    private ImageViewer() {
+    private ImageViewer( PixelSlabPool slabPool ) {
+        this.slabPool = slabPool;
 
         this.setFocusTraversable( true );
         this.requestFocus();
         this.setPreserveRatio( true );
     }
 
+    /**
+     * Shows image fitted into parent. An image released by its buffer already is not shown, its pixels might belong
+     * to another image by now.
+     *
+     * @param image image to show, nothing happens if null
+     */
     public void setImageAndFit( Image image ) {
         if( image != null ) {
+            Image previous = displayImage;
+            if( image != previous && !slabPool.acquire( image ) ) {
+                LOG.debug( "Not showing image released already." );
+                return;
+            }
+            displayImage = image;
             this.setImage( image );
             fitImage();
+            if( image != previous ) {
+                // not on screen anymore
+                slabPool.release( previous );
+            }
         }
     }
 
@@ -41,6 +73,11 @@ public class ImageViewer extends ImageView {
     }
 
     public void fitImage() {
+        if( displayImage != null && getImage() != displayImage ) {
+            // leaving zoom - switch back from full resolution image
+            this.setImage( displayImage );
+        }
+        releaseZoomed();
         this.autosize();
         this.setTranslateX( 0 );
         this.setTranslateY( 0 );
@@ -76,9 +113,23 @@ public class ImageViewer extends ImageView {
             this.setTranslateY( this.getTranslateY() - y );
     }
 
-    public void zoom100( double x, double y ) {
+    /**
+     * Zooms to 100% of full resolution image, centering given position.
+     *
+     * @param x x position in parent
+     * @param y y position in parent
+     * @param fullImage current image in full resolution, if null the displayed image is used
+     */
+    public void zoom100( double x, double y, Image fullImage ) {
         double oldHeight = this.getBoundsInLocal().getHeight();
         double oldWidth = this.getBoundsInLocal().getWidth();
+        if( fullImage != null && fullImage != getImage() ) {
+            LOG.debug( "Showing full resolution image " + fullImage.getWidth() + "x" + fullImage.getHeight() );
+            slabPool.acquire( fullImage );
+            this.setImage( fullImage );
+            releaseZoomed();
+            zoomedImage = fullImage;
+        }
 
         boolean heightLarger = oldHeight > oldWidth;
         this.setFitHeight( -1 );
@@ -100,4 +151,11 @@ public class ImageViewer extends ImageView {
 
     }
 
+    private void releaseZoomed() {
+        if( zoomedImage != null && getImage() != zoomedImage ) {
+            slabPool.release( zoomedImage );
+            zoomedImage = null;
+        }
+    }
+
 }
@@ -12,11 +12,13 @@ import org.slf4j.LoggerFactory;
 import com.google.common.base.Strings;
 import com.google.common.eventbus.Subscribe;
 
-import de.moritz.fastimageviewer.image.ImageProvider;
+import de.moritz.fastimageviewer.image.AsyncImageProvider;
 import de.moritz.fastimageviewer.image.file.FileImageProvider;
 import de.moritz.fastimageviewer.image.file.FileImageProvider.Inst;
 import de.moritz.fastimageviewer.image.imageservice.ImageServiceImageProvider;
 import de.moritz.fastimageviewer.main.DiModule.Args;
+import javafx.animation.Animation;
+import javafx.animation.PauseTransition;
 import javafx.application.Platform;
 import javafx.beans.value.ObservableValue;
 import javafx.event.ActionEvent;
@@ -36,6 +38,7 @@ import javafx.scene.input.ScrollEvent;
 import javafx.scene.input.TransferMode;
 import javafx.scene.layout.AnchorPane;
 import javafx.scene.layout.StackPane;
+import javafx.util.Duration;
 
 /**
  * Created by moritz on 05.03.2016.
@@ -45,9 +48,13 @@ public class MainController {
 
     private final ImageViewer imageView;
     private final EventBus eventBus;
-    private ImageProvider ip;
+    private AsyncImageProvider ip;
     private final String[] args;
     private static final float MOVEMENT_PIXEL = 50f;
+    /**
+     * minimal time between two image requests while navigating, requests in between are merged
+     */
+    private static final long NAVIGATION_INTERVAL_MS = 80;
     private static final Logger LOG = LoggerFactory.getLogger( MainController.class );
 
     @FXML
@@ -85,6 +92,20 @@ public class MainController {
     private boolean zoomedIn = false;
     private Double mouseStartX;
     private Double mouseStartY;
+    /**
+     * counts requested images, only the last one requested is shown
+     */
+    private volatile long imageRequest = 0;
+    /**
+     * images to move on next image request
+     */
+    private int pendingSteps = 0;
+    private long lastNavigation = 0;
+    private final PauseTransition navigationDelay = new PauseTransition();
+    /**
+     * delays propagation of viewport size until resizing has stopped
+     */
+    private final PauseTransition viewportUpdate = new PauseTransition( Duration.millis( 300 ) );
 
     @Inject
     public MainController(ImageViewer imageView, @Args String[] args, FileImageProvider.Inst fileImageProviderFactory,
@@ -102,15 +123,79 @@ public class MainController {
         bufferBar.setProgress( state.getForward() );
     }
 
+    /**
+     * Shows image posted by provider, e.g. current image that failed to load before. Not shown if another image was
+     * requested since it was posted.
+     *
+     * @param image image to be shown
+     */
     @Subscribe
     public void setImageWaitedFor( Image image ) {
-        imageView.setImageAndFit( image );
+        long request = imageRequest;
+        Platform.runLater( () -> {
+            if( request != imageRequest ) {
+                // posted for an image the user moved on from
+                return;
+            }
+            imageView.setImageAndFit( image );
+        } );
+    }
+
+    /**
+     * Shows image as soon as it is loaded. Current image stays visible until then. If another image is requested in
+     * the meantime this one is not shown anymore.
+     *
+     * @param image image to be shown
+     */
+    private void show( CompletableFuture<Image> image ) {
+        long request = ++imageRequest;
+        image.whenComplete( ( loaded, ex ) -> Platform.runLater( () -> {
+            if( request != imageRequest ) {
+                // a newer image was requested, previous might have been cancelled
+                return;
+            }
+            if( ex != null ) {
+                LOG.error( "Problem on loading image: " + ex );
+            } else {
+                imageView.setImageAndFit( loaded );
+            }
+        } ) );
+    }
+
+    /**
+     * Moves given number of images. If called faster than {@link #NAVIGATION_INTERVAL_MS}, steps are summed up and
+     * requested at once, so images in between are skipped and not loaded.
+     *
+     * @param steps images to move, negative to move backwards
+     */
+    private void navigate( int steps ) {
+        pendingSteps += steps;
+        if( navigationDelay.getStatus() == Animation.Status.RUNNING ) {
+            // steps will be sent when delay is over
+            return;
+        }
+        long wait = lastNavigation + NAVIGATION_INTERVAL_MS - System.currentTimeMillis();
+        if( wait <= 0 ) {
+            sendNavigation();
+        } else {
+            navigationDelay.setDuration( Duration.millis( wait ) );
+            navigationDelay.playFromStart();
+        }
+    }
+
+    private void sendNavigation() {
+        if( pendingSteps != 0 ) {
+            lastNavigation = System.currentTimeMillis();
+            int steps = pendingSteps;
+            pendingSteps = 0;
+            show( ip.skipAsync( steps ) );
+        }
     }
 
-    private ImageProvider getIp( String[] args ) {
+    private AsyncImageProvider getIp( String[] args ) {
         startPath = args == null || args.length < 1 ? null : args[0];
         subPath = null;
-        ImageProvider ip;
+        AsyncImageProvider ip;
         if( startPath != null && startPath.toLowerCase().startsWith( "http" ) ) {
             webserviceMode = true;
             ip = serviceImageProviderFactory.get( startPath );
@@ -138,6 +223,8 @@ public class MainController {
         goButton.setOnAction( this::handlePathChanged );
         infoButton.setOnAction( this::onInfoButton );
         sortCheckBox.selectedProperty().addListener( this::sortChanged );
+        viewportUpdate.setOnFinished( e -> updateViewportSize() );
+        navigationDelay.setOnFinished( e -> sendNavigation() );
 
     }
 
@@ -166,7 +253,14 @@ public class MainController {
             double y = event.getY();
             event.consume();
             zoomedIn = true;
-            imageView.zoom100( x, y );
+            imageView.zoom100( x, y, null );
+            long request = imageRequest;
+            ip.getFullImageAsync().thenAccept( full -> Platform.runLater( () -> {
+                // still zoomed into same image
+                if( zoomedIn && request == imageRequest ) {
+                    imageView.zoom100( x, y, full );
+                }
+            } ) );
             mouseStartX = null;
             mouseStartY = null;
         }
@@ -176,6 +270,8 @@ public class MainController {
         root.getScene().setCursor( Cursor.DEFAULT );
         zoomedIn = false;
         imageView.fitImage();
+        // full resolution image is large, it is loaded again on next zoom
+        ip.releaseFullImage();
     }
 
     public void dragOnMouseMove( MouseEvent event ) {
@@ -192,13 +288,17 @@ public class MainController {
     }
 
     public void onReady() {
-        if( ip != null && ip.hasNext() ) {
-            imageView.setImageAndFit( ip.next() );
+        updateViewportSize();
+        if( ip != null ) {
+            // shown as soon as it is found, folder might still be scanned
+            show( ip.getImageAsync() );
         }
     }
 
     private void onInfoButton( ActionEvent event ) {
-        CompletableFuture.runAsync(() -> infoField.setText(ip.getInfoForLast()))
+        // info might need a request, but text field must be set on fx thread
+        CompletableFuture.supplyAsync( ip::getInfoForLast )
+        .thenAccept( info -> Platform.runLater( () -> infoField.setText( info ) ) )
         .exceptionally(ex -> {
             LOG.error("Problem on getting info: " + ex);
             return null;
@@ -212,10 +312,11 @@ public class MainController {
         }
         if( !pathField.getText().equals( startPath ) ) {
             ip = getIp( new String[]{ pathField.getText(), newFilter } );
-            imageView.setImageAndFit( ip.next() );
+            updateViewportSize();
+            show( ip.getImageAsync() );
         } else if( !newFilter.equals( subPath ) && webserviceMode ) {
             ip.setPath( newFilter );
-            imageView.setImageAndFit( ip.next() );
+            show( ip.nextAsync() );
         }
     }
 
@@ -226,7 +327,7 @@ public class MainController {
                 if(zoomedIn){
                     imageView.moveImageY( MOVEMENT_PIXEL );
                 } else if(!filterField.isFocused() && !pathField.isFocused()){
-                    imageView.setImageAndFit( ip.prev() );
+                    navigate( -1 );
                 }
 
                 break;
@@ -234,7 +335,7 @@ public class MainController {
                 if(zoomedIn){
                     imageView.moveImageY( -MOVEMENT_PIXEL );
                 } else if(!filterField.isFocused() && !pathField.isFocused()){
-                    imageView.setImageAndFit( ip.next() );
+                    navigate( 1 );
                 }
                 break;
             case A:
@@ -248,11 +349,11 @@ public class MainController {
                 }
                 break;
             case PAGE_UP:
-                imageView.setImageAndFit( ip.prev() );
+                navigate( -1 );
                 event.consume();
                 break;
             case PAGE_DOWN:
-                imageView.setImageAndFit( ip.next() );
+                navigate( 1 );
                 event.consume();
                 break;
             case ESCAPE:
@@ -278,8 +379,7 @@ public class MainController {
         boolean success = false;
         if( db.hasFiles() && db.getFiles().size() > 0 ) {
             ip.setPath( db.getFiles().get( 0 ).toString() );
-            Image image = ip.getImage();
-            imageView.setImageAndFit( image );
+            show( ip.getImageAsync() );
             success = true;
         }
         event.setDropCompleted( success );
@@ -290,15 +390,25 @@ public class MainController {
         double deltaY = event.getDeltaY();
         event.consume();
         if( deltaY < 0 ) {
-            imageView.setImageAndFit( ip.next() );
+            navigate( 1 );
         } else {
-            imageView.setImageAndFit( ip.prev() );
+            navigate( -1 );
         }
     }
 
     private void handleResize( ) {
         //using run later to be sure the call is done after resize is finished
         Platform.runLater( imageView::fitImage);
+        viewportUpdate.playFromStart();
+    }
+
+    /**
+     * Tells image provider the size of image area in screen pixels.
+     */
+    private void updateViewportSize() {
+        double scale = root.getScene() != null && root.getScene().getWindow() != null
+                       ? root.getScene().getWindow().getOutputScaleX() : 1;
+        ip.setViewportSize( imageArea.getWidth() * scale, imageArea.getHeight() * scale );
     }
 
     private void sortChanged( ObservableValue<? extends Boolean> selected, Boolean oldV, Boolean newV ) {
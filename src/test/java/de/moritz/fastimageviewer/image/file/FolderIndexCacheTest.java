@@ -0,0 +1,156 @@
+package de.moritz.fastimageviewer.image.file;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import de.moritz.fastimageviewer.image.file.FolderIndex.Folder;
+import de.moritz.fastimageviewer.main.DiModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Index stored between sessions and its revalidation by modification time of folders.
+ */
+public class FolderIndexCacheTest {
+
+    /**
+     * modification time far enough in past to be trusted
+     */
+    private static final FileTime LONG_AGO = FileTime.fromMillis(System.currentTimeMillis() - 60000);
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private Injector injector;
+    private Path root;
+
+    @Before
+    public void setUp() throws IOException {
+        System.setProperty(DiModule.CACHE_DIR_PROPERTY, temp.newFolder("cache").toString());
+        System.setProperty(DiModule.WATCH_PROPERTY, "false");
+        injector = Guice.createInjector(new DiModule(null));
+        root = temp.newFolder("images").toPath();
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(DiModule.CACHE_DIR_PROPERTY);
+        System.clearProperty(DiModule.WATCH_PROPERTY);
+    }
+
+    @Test
+    public void savedFoldersAreLoaded() {
+        FolderIndexCache cache = injector.getInstance(FolderIndexCache.class);
+        Map<Path, Folder> folders = new HashMap<>();
+        folders.put(root, new Folder(1234, Arrays.asList("a.jpg", "b.png"), Collections.singletonList("sub")));
+        folders.put(root.resolve("sub"), new Folder(FolderIndex.UNKNOWN, Collections.emptyList(),
+                                                    Collections.emptyList()));
+
+        cache.save(root, folders);
+        Map<Path, Folder> loaded = cache.load(root);
+
+        assertEquals(folders.keySet(), loaded.keySet());
+        assertEquals(1234, loaded.get(root).getModified());
+        assertEquals(Arrays.asList("a.jpg", "b.png"), loaded.get(root).getImages());
+        assertEquals(Collections.singletonList("sub"), loaded.get(root).getFolders());
+        assertEquals(FolderIndex.UNKNOWN, loaded.get(root.resolve("sub")).getModified());
+        assertTrue(cache.load(root.resolve("sub")).isEmpty());
+    }
+
+    @Test
+    public void unmodifiedFolderIsTakenFromCache() throws IOException {
+        Files.createFile(root.resolve("a.jpg"));
+        Files.setLastModifiedTime(root, LONG_AGO);
+        scan();
+        waitForCache(root);
+        // not seen if folder is trusted, as its modification time is set back
+        Files.createFile(root.resolve("b.jpg"));
+        Files.setLastModifiedTime(root, LONG_AGO);
+
+        assertEquals(Collections.singletonList(root.resolve("a.jpg")), scan());
+    }
+
+    @Test
+    public void modifiedFolderIsListedAgain() throws IOException {
+        Path sub = Files.createDirectory(root.resolve("sub"));
+        Files.createFile(sub.resolve("a.jpg"));
+        Files.setLastModifiedTime(sub, LONG_AGO);
+        Files.setLastModifiedTime(root, LONG_AGO);
+        scan();
+        waitForCache(root);
+        Files.delete(sub.resolve("a.jpg"));
+        Files.createFile(sub.resolve("b.jpg"));
+        Files.setLastModifiedTime(sub, FileTime.fromMillis(LONG_AGO.toMillis() + 1000));
+
+        assertEquals(Collections.singletonList(sub.resolve("b.jpg")), scan());
+    }
+
+    @Test
+    public void recentlyModifiedFolderIsListedAgain() throws IOException {
+        Files.createFile(root.resolve("a.jpg"));
+        scan();
+        assertEquals(FolderIndex.UNKNOWN, waitForCache(root).get(root).getModified());
+        // created in same tick as listing before, modification time might not have changed
+        Files.createFile(root.resolve("b.jpg"));
+
+        assertEquals(Arrays.asList(root.resolve("a.jpg"), root.resolve("b.jpg")), scan());
+    }
+
+    @Test
+    public void folderNotListedIsNotTrusted() throws IOException {
+        // listing a file fails like a folder not accessible
+        Path file = Files.createFile(root.resolve("folder"));
+        Files.setLastModifiedTime(file, LONG_AGO);
+        FolderIndex index = injector.getInstance(FolderIndex.Inst.class).get(file);
+        index.scan();
+        index.getScanned().join();
+
+        assertEquals(FolderIndex.UNKNOWN, waitForCache(file).get(file).getModified());
+    }
+
+    /**
+     * @return images found by a new index of root
+     */
+    private List<Path> scan() {
+        FolderIndex index = injector.getInstance(FolderIndex.Inst.class).get(root);
+        index.scan();
+        index.getScanned().join();
+        return index.getSnapshot();
+    }
+
+    /**
+     * @return folders stored for root folder, once scan stored them
+     */
+    private Map<Path, Folder> waitForCache(Path folder) {
+        FolderIndexCache cache = injector.getInstance(FolderIndexCache.class);
+        Map<Path, Folder> folders = cache.load(folder);
+        for (int waited = 0; folders.isEmpty() && waited < 5000; waited += 10) {
+            sleep();
+            folders = cache.load(folder);
+        }
+        return folders;
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package de.moritz.fastimageviewer.image.imageservice;
+
+import com.google.inject.Guice;
+import com.sun.net.httpserver.HttpServer;
+import de.moritz.fastimageviewer.main.DiModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Batch requests against a local stand-in for image service. Images are never decoded, so no JavaFX toolkit is
+ * needed.
+ */
+public class ImageServiceApiImplTest {
+
+    @Rule
+    public TemporaryFolder cacheDir = new TemporaryFolder();
+
+    private HttpServer server;
+    private final AtomicInteger batchRequests = new AtomicInteger();
+    private final AtomicInteger singleRequests = new AtomicInteger();
+    private final List<String> batchQueries = new ArrayList<>();
+
+    @Before
+    public void startServer() throws IOException {
+        System.setProperty(DiModule.CACHE_DIR_PROPERTY, cacheDir.getRoot().toString());
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/index/", exchange -> {
+            singleRequests.incrementAndGet();
+            byte[] image = imageOf(Integer.parseInt(exchange.getRequestURI().getPath().substring(7)));
+            exchange.getResponseHeaders().add("Content-Type", "image/jpeg");
+            exchange.sendResponseHeaders(200, image.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(image);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+        System.clearProperty(DiModule.CACHE_DIR_PROPERTY);
+    }
+
+    @Test
+    public void batchIsStreamedInOneRequest() throws IOException {
+        CountDownLatch firstReceived = new CountDownLatch(1);
+        AtomicBoolean streamed = new AtomicBoolean();
+        server.createContext("/batch", exchange -> {
+            batchRequests.incrementAndGet();
+            batchQueries.add(exchange.getRequestURI().getQuery());
+            // chunked, parts are written one after another
+            exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, 0);
+            try (DataOutputStream out = new DataOutputStream(exchange.getResponseBody())) {
+                writePart(out, 1, "info 1", imageOf(1));
+                out.flush();
+                try {
+                    // rest is only sent after client handled first part
+                    streamed.set(firstReceived.await(5, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                // service has no image 2
+                writePart(out, 2, null, null);
+                out.flush();
+                writePart(out, 3, "info 3", imageOf(3));
+            }
+        });
+        List<ImageServiceImageId> ids = Arrays.asList(new ImageServiceImageId(1, null), new ImageServiceImageId(2, null),
+                                                      new ImageServiceImageId(3, null));
+        List<ImageServiceImageId> received = new ArrayList<>();
+        List<String> infos = new ArrayList<>();
+        List<byte[]> images = new ArrayList<>();
+
+        boolean supported = createApi().getImages(ids, 800, 600, (id, image, info) -> {
+            received.add(id);
+            infos.add(info);
+            images.add(image);
+            firstReceived.countDown();
+        });
+
+        assertTrue(supported);
+        assertTrue(streamed.get());
+        assertEquals(1, batchRequests.get());
+        assertEquals(0, singleRequests.get());
+        assertEquals(Arrays.asList("indexes=1,2,3&width=800&height=600"), batchQueries);
+        assertEquals(ids, received);
+        assertEquals(Arrays.asList("info 1", null, "info 3"), infos);
+        assertArrayEquals(imageOf(1), images.get(0));
+        assertNull(images.get(1));
+        assertArrayEquals(imageOf(3), images.get(2));
+    }
+
+    @Test
+    public void partsLeftOutEndBatch() throws IOException {
+        server.createContext("/batch", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, 0);
+            try (DataOutputStream out = new DataOutputStream(exchange.getResponseBody())) {
+                writePart(out, 2, "info 2", imageOf(2));
+            }
+        });
+        List<ImageServiceImageId> received = new ArrayList<>();
+
+        boolean supported = createApi().getImages(
+                Arrays.asList(new ImageServiceImageId(1, null), new ImageServiceImageId(2, null)), 0, 0,
+                (id, image, info) -> received.add(id));
+
+        assertTrue(supported);
+        assertEquals(Arrays.asList(new ImageServiceImageId(2, null)), received);
+    }
+
+    @Test
+    public void freshImagesAreServedFromHttpCache() throws IOException {
+        server.createContext("/batch", exchange -> {
+            batchRequests.incrementAndGet();
+            batchQueries.add(exchange.getRequestURI().getQuery());
+            exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+            exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+            exchange.sendResponseHeaders(200, 0);
+            try (DataOutputStream out = new DataOutputStream(exchange.getResponseBody())) {
+                for (String index : exchange.getRequestURI().getQuery().split("[=&]")[1].split(",")) {
+                    writePart(out, Integer.parseInt(index), "info " + index, imageOf(Integer.parseInt(index)));
+                }
+            }
+        });
+        ImageServiceApi api = createApi();
+        ImageServiceImageId first = new ImageServiceImageId(1, null);
+        ImageServiceImageId second = new ImageServiceImageId(2, null);
+        List<ImageServiceImageId> received = new ArrayList<>();
+        List<String> infos = new ArrayList<>();
+
+        api.getImages(Arrays.asList(first), 800, 600, (id, image, info) -> {});
+        assertTrue(api.getImages(Arrays.asList(first, second), 800, 600, (id, image, info) -> {
+            received.add(id);
+            infos.add(info);
+        }));
+        api.getImages(Arrays.asList(first, second), 800, 600, (id, image, info) -> {});
+
+        // only images not cached were requested
+        assertEquals(Arrays.asList("indexes=1&width=800&height=600", "indexes=2&width=800&height=600"), batchQueries);
+        assertEquals(Arrays.asList(first, second), received);
+        assertEquals(Arrays.asList(null, "info 2"), infos);
+        // parts of batches are used by single requests too
+        assertArrayEquals(imageOf(2), api.getImageBytes(second, 800, 600));
+        assertEquals(0, singleRequests.get());
+    }
+
+    @Test
+    public void serviceWithoutBatchFallsBackToSingleRequests() throws IOException {
+        // stand-in answers 404 for /batch like services without batch endpoint
+        ImageServiceApi api = createApi();
+        List<ImageServiceImageId> ids = Arrays.asList(new ImageServiceImageId(1, null), new ImageServiceImageId(2, null));
+
+        assertFalse(api.getImages(ids, 0, 0, (id, image, info) -> {
+            throw new AssertionError("no parts expected");
+        }));
+        int requestsAfterFirstTry = singleRequests.get();
+        assertFalse(api.getImages(ids, 0, 0, (id, image, info) -> {
+            throw new AssertionError("no parts expected");
+        }));
+        assertEquals(requestsAfterFirstTry, singleRequests.get());
+        assertArrayEquals(imageOf(2), api.getImageBytes(new ImageServiceImageId(2, null)));
+    }
+
+    @Test
+    public void otherContentMeansNoBatchEndpoint() throws IOException {
+        server.createContext("/batch", exchange -> {
+            byte[] page = "<html></html>".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/html");
+            exchange.sendResponseHeaders(200, page.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(page);
+            }
+        });
+
+        assertFalse(createApi().getImages(Arrays.asList(new ImageServiceImageId(1, null)), 0, 0,
+                                          (id, image, info) -> {
+                                              throw new AssertionError("no parts expected");
+                                          }));
+    }
+
+    private ImageServiceApi createApi() {
+        return Guice.createInjector(new DiModule(null)).getInstance(ImageServiceApiFactory.class)
+                    .get("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    private static void writePart(DataOutputStream out, int index, String info, byte[] image) throws IOException {
+        out.writeInt(index);
+        writeBytes(out, info == null ? null : info.getBytes(StandardCharsets.UTF_8));
+        writeBytes(out, image);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * @return bytes standing in for image, not decodable
+     */
+    private static byte[] imageOf(int index) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; i < 1000 + index; i++) {
+            bytes.write(index + i);
+        }
+        return bytes.toByteArray();
+    }
+}
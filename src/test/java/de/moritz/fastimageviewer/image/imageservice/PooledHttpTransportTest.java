@@ -0,0 +1,121 @@
+package de.moritz.fastimageviewer.image.imageservice;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.common.io.ByteStreams;
+import com.google.inject.Guice;
+import com.sun.net.httpserver.HttpServer;
+import de.moritz.fastimageviewer.main.DiModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Requests against a local server that stalls while sending a body.
+ */
+public class PooledHttpTransportTest {
+
+    private HttpServer server;
+    private final CountDownLatch stalled = new CountDownLatch(1);
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/complete", exchange -> {
+            exchange.sendResponseHeaders(200, 3);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(new byte[]{1, 2, 3});
+            }
+        });
+        server.createContext("/stalling", exchange -> {
+            exchange.sendResponseHeaders(200, 1000);
+            OutputStream out = exchange.getResponseBody();
+            out.write(new byte[10]);
+            out.flush();
+            try {
+                // rest of body never comes
+                stalled.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        stalled.countDown();
+        server.stop(0);
+    }
+
+    @Test
+    public void bodyIsRead() throws IOException {
+        HttpResponse response = request("/complete", 500).execute();
+        try {
+            assertArrayEquals(new byte[]{1, 2, 3}, ByteStreams.toByteArray(response.getContent()));
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    @Test
+    public void stalledBodyTimesOut() throws IOException {
+        long start = System.nanoTime();
+        HttpResponse response = request("/stalling", 300).execute();
+        try {
+            ByteStreams.toByteArray(response.getContent());
+            fail("body is not complete");
+        } catch (SocketTimeoutException e) {
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    @Test
+    public void interruptAbortsStalledBody() throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<byte[]> body = pool.submit(() -> {
+                HttpResponse response = request("/stalling", 10000).execute();
+                try {
+                    return ByteStreams.toByteArray(response.getContent());
+                } finally {
+                    response.disconnect();
+                }
+            });
+            Thread.sleep(500);
+            body.cancel(true);
+            // thread is free again, although body is still stalled
+            assertEquals(Integer.valueOf(1), pool.submit(() -> 1).get(2, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private HttpRequest request(String path, int readTimeout) throws IOException {
+        PooledHttpTransport transport = Guice.createInjector(new DiModule(null)).getInstance(PooledHttpTransport.class);
+        HttpRequest request = transport.createRequestFactory()
+                                       .buildGetRequest(new GenericUrl("http://127.0.0.1:"
+                                                                       + server.getAddress().getPort() + path));
+        request.setReadTimeout(readTimeout);
+        return request;
+    }
+}
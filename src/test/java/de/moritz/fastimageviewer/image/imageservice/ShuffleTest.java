@@ -0,0 +1,87 @@
+package de.moritz.fastimageviewer.image.imageservice;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Order of indexes given by {@link Shuffle}: every index once per cycle, in any cycle.
+ */
+public class ShuffleTest {
+
+    private static final long SEED = 42;
+
+    @Test
+    public void smallSizesAreBijections() {
+        for (int size = 1; size <= 3; size++) {
+            assertCyclesAreBijections(size, -3, 3);
+        }
+    }
+
+    @Test
+    public void sizesNotPowerOfTwoAreBijections() {
+        for (int size : new int[]{5, 17, 100, 1000, 4097}) {
+            assertCyclesAreBijections(size, -2, 2);
+        }
+    }
+
+    @Test
+    public void negativePositionsContinueBeforeFirstCycle() {
+        Shuffle shuffle = new Shuffle(SEED, 10);
+        Set<Integer> cycle = new HashSet<>();
+        for (long position = -10; position < 0; position++) {
+            cycle.add(shuffle.indexAt(position));
+        }
+        assertEquals(10, cycle.size());
+    }
+
+    @Test
+    public void sameSeedGivesSameOrder() {
+        Shuffle shuffle = new Shuffle(SEED, 100);
+        Shuffle same = new Shuffle(SEED, 100);
+        for (long position = -100; position < 100; position++) {
+            assertEquals(shuffle.indexAt(position), same.indexAt(position));
+        }
+    }
+
+    @Test
+    public void cyclesAreShuffledDifferently() {
+        Shuffle shuffle = new Shuffle(SEED, 100);
+        boolean differs = false;
+        for (int position = 0; position < 100; position++) {
+            differs |= shuffle.indexAt(position) != shuffle.indexAt(position + 100);
+        }
+        assertTrue(differs);
+        assertNotEquals(order(new Shuffle(SEED, 100)), order(new Shuffle(SEED + 1, 100)));
+    }
+
+    /**
+     * Asserts that every cycle from first to last contains each index exactly once, cycles before first one
+     * included.
+     */
+    private static void assertCyclesAreBijections(int size, int firstCycle, int lastCycle) {
+        Shuffle shuffle = new Shuffle(SEED, size);
+        for (long cycle = firstCycle; cycle <= lastCycle; cycle++) {
+            Set<Integer> indexes = new HashSet<>();
+            for (long position = cycle * size; position < (cycle + 1) * size; position++) {
+                int index = shuffle.indexAt(position);
+                assertTrue("index " + index + " out of range for size " + size, index >= 0 && index < size);
+                assertTrue("index " + index + " repeated in cycle " + cycle + " of size " + size, indexes.add(index));
+            }
+            assertEquals(size, indexes.size());
+        }
+    }
+
+    private static String order(Shuffle shuffle) {
+        StringBuilder order = new StringBuilder();
+        for (int position = 0; position < 100; position++) {
+            order.append(shuffle.indexAt(position)).append(',');
+        }
+        return order.toString();
+    }
+}